@@ -1,9 +1,10 @@
 package edu.buffalo.cse.phonelab.harness.lib.interfaces;
 
+/*
+ * Clients hand files to the uploader once through UploaderService.enqueue() and are told
+ * how each transfer ended through complete(). Several transfers may be in flight at once,
+ * and a failed or held back file is offered again later without a new enqueue.
+ */
 public interface UploaderClient {
-	public void prepare();
-	public boolean hasNext();
-	public long bytesAvailable();
-	public UploaderFileDescription next();
 	public void complete(UploaderFileDescription uploaderFileDescription, boolean success);
 }
@@ -5,6 +5,8 @@ import java.io.File;
 import org.simpleframework.xml.Element;
 
 public class UploaderFileDescription {
+	public static final String ENCODING_GZIP = "gzip";
+	
 	@Element
 	public String src;
 	
@@ -16,6 +18,7 @@ public class UploaderFileDescription {
 	
 	public long len;
 	public UploaderClient uploader;
+	public String contentEncoding;
 	
 	public UploaderFileDescription(@Element (name = "src") String src,
 			@Element (name = "filename") String filename,
@@ -28,6 +31,11 @@ public class UploaderFileDescription {
 		this.filename = filename;
 		this.packagename = packagename;
 		this.len = new File(this.src).length();
+		this.contentEncoding = null;
+	}
+	
+	public boolean isCompressed() {
+		return ENCODING_GZIP.equals(contentEncoding);
 	}
 
 	@Override
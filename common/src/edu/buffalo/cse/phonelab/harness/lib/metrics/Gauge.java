@@ -0,0 +1,16 @@
+package edu.buffalo.cse.phonelab.harness.lib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Gauge {
+	
+	private final AtomicLong value = new AtomicLong();
+	
+	public void set(long newValue) {
+		value.set(newValue);
+	}
+	
+	public long get() {
+		return value.get();
+	}
+}
@@ -0,0 +1,48 @@
+package edu.buffalo.cse.phonelab.harness.lib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Fixed buckets given by their inclusive upper bounds, plus one overflow bucket.
+ * Recording is a linear scan over a handful of bounds and a few atomic updates.
+ */
+public class Histogram {
+	
+	public static final long[] LATENCY_MS = { 10L, 50L, 100L, 500L, 1000L, 5000L, 10000L, 30000L, 60000L, 300000L };
+	public static final long[] THROUGHPUT_KBPS = { 1L, 4L, 16L, 64L, 256L, 1024L, 4096L };
+	
+	private final long[] bounds;
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+	
+	public Histogram(long[] bounds) {
+		this.bounds = bounds.clone();
+		this.counts = new AtomicLongArray(bounds.length + 1);
+	}
+	
+	public void record(long value) {
+		int bucket = 0;
+		while (bucket < bounds.length && value > bounds[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax = max.get();
+		while (value > currentMax && max.compareAndSet(currentMax, value) == false) {
+			currentMax = max.get();
+		}
+	}
+	
+	HistogramSnapshot snapshot(String name) {
+		HistogramSnapshot snapshot = new HistogramSnapshot(name, count.get(), sum.get(), count.get() == 0L ? 0L : max.get());
+		for (int i = 0; i < bounds.length; i++) {
+			snapshot.buckets.add(new HistogramBucket(String.valueOf(bounds[i]), counts.get(i)));
+		}
+		snapshot.buckets.add(new HistogramBucket("inf", counts.get(bounds.length)));
+		return snapshot;
+	}
+}
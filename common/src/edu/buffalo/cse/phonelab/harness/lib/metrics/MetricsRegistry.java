@@ -0,0 +1,68 @@
+package edu.buffalo.cse.phonelab.harness.lib.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Named metrics for one task. Lookups create on first use and never lock, so hot
+ * paths can either keep the returned instance or look it up each time. Values are
+ * cumulative for the life of the process; snapshot() copies them for getState().
+ */
+public class MetricsRegistry {
+	
+	private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter newCounter = new Counter();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+	
+	public Gauge gauge(String name) {
+		Gauge gauge = gauges.get(name);
+		if (gauge == null) {
+			Gauge newGauge = new Gauge();
+			gauge = gauges.putIfAbsent(name, newGauge);
+			if (gauge == null) {
+				gauge = newGauge;
+			}
+		}
+		return gauge;
+	}
+	
+	/* bounds only apply when the histogram is first created */
+	public Histogram histogram(String name, long[] bounds) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram(bounds);
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+	
+	public MetricsSnapshot snapshot() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+			snapshot.counters.add(new MetricValue(entry.getKey(), entry.getValue().get()));
+		}
+		for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			snapshot.gauges.add(new MetricValue(entry.getKey(), entry.getValue().get()));
+		}
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			snapshot.histograms.add(entry.getValue().snapshot(entry.getKey()));
+		}
+		return snapshot;
+	}
+}
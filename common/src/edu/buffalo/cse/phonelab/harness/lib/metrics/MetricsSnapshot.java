@@ -0,0 +1,98 @@
+package edu.buffalo.cse.phonelab.harness.lib.metrics;
+
+import java.util.ArrayList;
+
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.ElementList;
+import org.simpleframework.xml.Root;
+
+@Root(name="Metrics")
+public class MetricsSnapshot {
+	
+	@ElementList(entry="counter", inline=true, required=false)
+	public ArrayList<MetricValue> counters;
+	
+	@ElementList(entry="gauge", inline=true, required=false)
+	public ArrayList<MetricValue> gauges;
+	
+	@ElementList(entry="histogram", inline=true, required=false)
+	public ArrayList<HistogramSnapshot> histograms;
+	
+	public MetricsSnapshot() {
+		counters = new ArrayList<MetricValue>();
+		gauges = new ArrayList<MetricValue>();
+		histograms = new ArrayList<HistogramSnapshot>();
+	}
+	
+	@Override
+	public String toString() {
+		return "MetricsSnapshot [counters=" + counters.size() + ", gauges="
+				+ gauges.size() + ", histograms=" + histograms.size() + "]";
+	}
+}
+
+class MetricValue {
+	
+	@Attribute
+	public String name;
+	
+	@Attribute
+	public Long value;
+	
+	public MetricValue() {
+		super();
+	}
+	
+	public MetricValue(String name, long value) {
+		this.name = name;
+		this.value = value;
+	}
+}
+
+class HistogramSnapshot {
+	
+	@Attribute
+	public String name;
+	
+	@Attribute
+	public Long count;
+	
+	@Attribute
+	public Long sum;
+	
+	@Attribute
+	public Long max;
+	
+	@ElementList(entry="bucket", inline=true)
+	public ArrayList<HistogramBucket> buckets;
+	
+	public HistogramSnapshot() {
+		buckets = new ArrayList<HistogramBucket>();
+	}
+	
+	public HistogramSnapshot(String name, long count, long sum, long max) {
+		this();
+		this.name = name;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+}
+
+class HistogramBucket {
+	
+	@Attribute
+	public String le;
+	
+	@Attribute
+	public Long count;
+	
+	public HistogramBucket() {
+		super();
+	}
+	
+	public HistogramBucket(String le, long count) {
+		this.le = le;
+		this.count = count;
+	}
+}
@@ -0,0 +1,158 @@
+package edu.buffalo.cse.phonelab.harness.lib.periodictask;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * One wakeup alarm shared by every PeriodicTask in the process. Each task has a
+ * deadline and a slack window before it. The alarm is set for the earliest
+ * deadline, and when it fires every task whose window has opened is checked in
+ * the same wakeup, so tasks with similar intervals drift into step instead of
+ * waking the device separately.
+ *
+ * Checks that a task defers to respect minCheckGapSec are kept apart from its
+ * alarm, so they neither replace it nor hold a wakelock while they wait. They
+ * fire with no slack once their deadline has passed.
+ */
+public class AlarmScheduler {
+	
+	private static final String TAG = "PhoneLabServices-AlarmScheduler";
+	private static final String WAKEUP_INTENT_NAME = AlarmScheduler.class.getName() + ".Wakeup";
+	
+	private static AlarmScheduler instance;
+	
+	public static synchronized AlarmScheduler getInstance(Context context) {
+		if (instance == null) {
+			instance = new AlarmScheduler(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	private final Context context;
+	private final PendingIntent pendingIntent;
+	private final HashMap<PeriodicTask<?, ?>, Alarm> alarms;
+	private final HashMap<PeriodicTask<?, ?>, Long> checks;
+	private long scheduledWakeup;
+	
+	private AlarmScheduler(Context context) {
+		this.context = context;
+		this.alarms = new HashMap<PeriodicTask<?, ?>, Alarm>();
+		this.checks = new HashMap<PeriodicTask<?, ?>, Long>();
+		this.scheduledWakeup = Long.MAX_VALUE;
+		this.pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(WAKEUP_INTENT_NAME), PendingIntent.FLAG_UPDATE_CURRENT);
+		context.registerReceiver(wakeupReceiver, new IntentFilter(WAKEUP_INTENT_NAME));
+	}
+	
+	/* intervalMS of 0 makes a one-shot alarm */
+	public synchronized void schedule(PeriodicTask<?, ?> task, long delayMS, long intervalMS, long slackMS) {
+		long deadline = SystemClock.elapsedRealtime() + delayMS;
+		alarms.put(task, new Alarm(deadline, intervalMS, Math.max(0L, Math.min(slackMS, delayMS))));
+		updateWakeup();
+	}
+	
+	public synchronized void cancel(PeriodicTask<?, ?> task) {
+		if (alarms.remove(task) != null) {
+			updateWakeup();
+		}
+	}
+	
+	public synchronized void scheduleCheck(PeriodicTask<?, ?> task, long delayMS) {
+		checks.put(task, SystemClock.elapsedRealtime() + delayMS);
+		updateWakeup();
+	}
+	
+	public synchronized void cancelCheck(PeriodicTask<?, ?> task) {
+		if (checks.remove(task) != null) {
+			updateWakeup();
+		}
+	}
+	
+	private BroadcastReceiver wakeupReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context arg0, Intent arg1) {
+			/* the platform holds a wakelock until onReceive returns, and each task takes its own before then */
+			ArrayList<PeriodicTask<?, ?>> dueChecks = new ArrayList<PeriodicTask<?, ?>>();
+			for (PeriodicTask<?, ?> task : collectDue(dueChecks)) {
+				task.alarmFired();
+			}
+			for (PeriodicTask<?, ?> task : dueChecks) {
+				task.deferredCheckDue();
+			}
+		}
+	};
+	
+	/* returns the tasks whose alarms are due and adds those with due deferred checks to dueChecks */
+	private synchronized ArrayList<PeriodicTask<?, ?>> collectDue(ArrayList<PeriodicTask<?, ?>> dueChecks) {
+		long now = SystemClock.elapsedRealtime();
+		ArrayList<PeriodicTask<?, ?>> due = new ArrayList<PeriodicTask<?, ?>>();
+		int scheduled = alarms.size();
+		Iterator<HashMap.Entry<PeriodicTask<?, ?>, Alarm>> iterator = alarms.entrySet().iterator();
+		while (iterator.hasNext()) {
+			HashMap.Entry<PeriodicTask<?, ?>, Alarm> entry = iterator.next();
+			Alarm alarm = entry.getValue();
+			if (alarm.deadline - alarm.slackMS > now) {
+				continue;
+			}
+			due.add(entry.getKey());
+			if (alarm.intervalMS > 0L) {
+				alarm.deadline = Math.max(alarm.deadline, now) + alarm.intervalMS;
+			} else {
+				iterator.remove();
+			}
+		}
+		Iterator<HashMap.Entry<PeriodicTask<?, ?>, Long>> checkIterator = checks.entrySet().iterator();
+		while (checkIterator.hasNext()) {
+			HashMap.Entry<PeriodicTask<?, ?>, Long> entry = checkIterator.next();
+			if (entry.getValue() <= now) {
+				dueChecks.add(entry.getKey());
+				checkIterator.remove();
+			}
+		}
+		Log.v(TAG, "Woke up with " + due.size() + " of " + scheduled + " tasks due and " + dueChecks.size() + " deferred checks.");
+		scheduledWakeup = Long.MAX_VALUE;
+		updateWakeup();
+		return due;
+	}
+	
+	private void updateWakeup() {
+		long nextWakeup = Long.MAX_VALUE;
+		for (Alarm alarm : alarms.values()) {
+			nextWakeup = Math.min(nextWakeup, alarm.deadline);
+		}
+		for (Long deadline : checks.values()) {
+			nextWakeup = Math.min(nextWakeup, deadline);
+		}
+		if (nextWakeup == scheduledWakeup) {
+			return;
+		}
+		AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		if (nextWakeup == Long.MAX_VALUE) {
+			manager.cancel(pendingIntent);
+		} else {
+			manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextWakeup, pendingIntent);
+		}
+		scheduledWakeup = nextWakeup;
+	}
+}
+
+class Alarm {
+	long deadline;
+	final long intervalMS;
+	final long slackMS;
+	
+	Alarm(long deadline, long intervalMS, long slackMS) {
+		this.deadline = deadline;
+		this.intervalMS = intervalMS;
+		this.slackMS = slackMS;
+	}
+}
@@ -0,0 +1,219 @@
+package edu.buffalo.cse.phonelab.harness.lib.periodictask;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Binary copy of a task's parameters. The file holds a magic number, the schema
+ * version and the parameter class name, then whatever the class writes in
+ * writeFields(). Parameters are encoded on the calling thread and written on a
+ * shared background thread to a temporary file that is synced and renamed into
+ * place, so a crash leaves either the old or the new copy.
+ *
+ * Bump SCHEMA_VERSION whenever a parameter class changes its fields, and guard
+ * the new reads in readFields() with the version they appeared in. Files from a
+ * newer schema are ignored.
+ */
+public class ParameterStore {
+	
+	public static final int SCHEMA_VERSION = 7;
+	
+	private static final int MAGIC = 0x50484c50;
+	private static final String DIRECTORY_NAME = "ParameterStore";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final String TAG = "PhoneLabServices-ParameterStore";
+	
+	private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+	
+	private final File file;
+	private final File temporaryFile;
+	
+	public ParameterStore(Context context, String name) {
+		File directory = context.getDir(DIRECTORY_NAME, Context.MODE_PRIVATE);
+		file = new File(directory, name + ".bin");
+		temporaryFile = new File(directory, name + ".bin" + TEMPORARY_SUFFIX);
+	}
+	
+	/* fills in parameters, which should hold defaults; false if there was nothing usable */
+	public boolean read(PeriodicParameters parameters) {
+		if (file.exists() == false) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC) {
+					Log.w(TAG, "Ignoring " + file + " with bad magic number.");
+					return false;
+				}
+				int version = in.readInt();
+				if (version > SCHEMA_VERSION) {
+					Log.w(TAG, "Ignoring " + file + " with newer schema " + version + ".");
+					return false;
+				}
+				String className = in.readUTF();
+				if (className.equals(parameters.getClass().getName()) == false) {
+					Log.w(TAG, "Ignoring " + file + " holding " + className + ".");
+					return false;
+				}
+				parameters.readFields(in, version);
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read " + file + ": " + e);
+			return false;
+		}
+	}
+	
+	public void save(PeriodicParameters parameters) {
+		submit(parameters);
+	}
+	
+	/*
+	 * For shutdown, when the write has to land before returning. It goes through
+	 * writeExecutor like any other save so it cannot be overwritten by an older
+	 * copy that was still queued.
+	 */
+	public void saveNow(PeriodicParameters parameters) {
+		Future<?> future = submit(parameters);
+		if (future == null) {
+			return;
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Log.e(TAG, "Unable to write " + file + ": " + e.getCause());
+					break;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private Future<?> submit(PeriodicParameters parameters) {
+		final byte[] bytes;
+		try {
+			bytes = encode(parameters);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to encode parameters for " + file + ": " + e);
+			return null;
+		}
+		return writeExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				write(bytes);
+			}
+		});
+	}
+	
+	private static byte[] encode(PeriodicParameters parameters) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(SCHEMA_VERSION);
+		out.writeUTF(parameters.getClass().getName());
+		parameters.writeFields(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	private synchronized void write(byte[] bytes) {
+		try {
+			FileOutputStream out = new FileOutputStream(temporaryFile);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (temporaryFile.renameTo(file) == false) {
+				throw new IOException("rename to " + file + " failed");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write " + file + ": " + e);
+			temporaryFile.delete();
+		}
+	}
+	
+	/* nullable field helpers, each value is preceded by a presence flag */
+	
+	public static void writeLong(DataOutput out, Long value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeLong(value);
+		}
+	}
+	
+	public static Long readLong(DataInput in) throws IOException {
+		return in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+	}
+	
+	public static void writeInteger(DataOutput out, Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeInt(value);
+		}
+	}
+	
+	public static Integer readInteger(DataInput in) throws IOException {
+		return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+	}
+	
+	public static void writeBoolean(DataOutput out, Boolean value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeBoolean(value);
+		}
+	}
+	
+	public static Boolean readBoolean(DataInput in) throws IOException {
+		return in.readBoolean() ? Boolean.valueOf(in.readBoolean()) : null;
+	}
+	
+	public static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+	
+	public static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	public static void writeDate(DataOutput out, Date value) throws IOException {
+		writeLong(out, (value == null) ? null : value.getTime());
+	}
+	
+	public static Date readDate(DataInput in) throws IOException {
+		Long time = readLong(in);
+		return (time == null) ? null : new Date(time);
+	}
+}
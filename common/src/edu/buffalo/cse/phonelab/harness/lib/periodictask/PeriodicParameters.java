@@ -1,5 +1,9 @@
 package edu.buffalo.cse.phonelab.harness.lib.periodictask;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.simpleframework.xml.Element;
 
 import android.app.AlarmManager;
@@ -9,17 +13,65 @@ public abstract class PeriodicParameters {
 	@Element
 	public Long checkInterval;
 	
+	@Element(required=false)
+	public Long minCheckGapSec;
+	
+	// How early a periodic check may run to share a wakeup with another task.
+	// Unset means a quarter of the check interval.
+	
+	@Element(required=false)
+	public Long checkSlackSec;
+	
 	public PeriodicParameters() {
 		this.checkInterval = AlarmManager.INTERVAL_HOUR / 1000;
+		this.minCheckGapSec = 0L;
+		this.checkSlackSec = null;
 	}
 	
 	public PeriodicParameters(PeriodicParameters parameters) {
 		this.checkInterval = parameters.checkInterval;
+		this.minCheckGapSec = parameters.minCheckGapSec;
+		this.checkSlackSec = parameters.checkSlackSec;
+	}
+	
+	public long getCheckSlackMS(long intervalMS) {
+		if (checkSlackSec == null) {
+			return intervalMS / 4;
+		} else if (checkSlackSec < 0L) {
+			return 0L;
+		}
+		return Math.min(checkSlackSec * 1000L, intervalMS);
+	}
+	
+	public long getMinCheckGapMS() {
+		if (minCheckGapSec == null || minCheckGapSec < 0L) {
+			return 0L;
+		}
+		return minCheckGapSec * 1000L;
+	}
+	
+	/* binary form for ParameterStore, subclasses append their own fields after calling super */
+	public void writeFields(DataOutput out) throws IOException {
+		ParameterStore.writeLong(out, checkInterval);
+		ParameterStore.writeLong(out, minCheckGapSec);
+		ParameterStore.writeLong(out, checkSlackSec);
+	}
+	
+	public void readFields(DataInput in, int version) throws IOException {
+		checkInterval = ParameterStore.readLong(in);
+		if (version >= 2) {
+			minCheckGapSec = ParameterStore.readLong(in);
+		}
+		if (version >= 3) {
+			checkSlackSec = ParameterStore.readLong(in);
+		}
 	}
 	
 	@Override
 	public String toString() {
-		return "PeriodicParameters [checkInterval=" + checkInterval + "]";
+		return "PeriodicParameters [checkInterval=" + checkInterval
+				+ ", minCheckGapSec=" + minCheckGapSec
+				+ ", checkSlackSec=" + checkSlackSec + "]";
 	}
 	@Override
 	public int hashCode() {
@@ -27,6 +79,10 @@ public abstract class PeriodicParameters {
 		int result = 1;
 		result = prime * result
 				+ ((checkInterval == null) ? 0 : checkInterval.hashCode());
+		result = prime * result
+				+ ((minCheckGapSec == null) ? 0 : minCheckGapSec.hashCode());
+		result = prime * result
+				+ ((checkSlackSec == null) ? 0 : checkSlackSec.hashCode());
 		return result;
 	}
 	@Override
@@ -43,6 +99,16 @@ public abstract class PeriodicParameters {
 				return false;
 		} else if (!checkInterval.equals(other.checkInterval))
 			return false;
+		if (minCheckGapSec == null) {
+			if (other.minCheckGapSec != null)
+				return false;
+		} else if (!minCheckGapSec.equals(other.minCheckGapSec))
+			return false;
+		if (checkSlackSec == null) {
+			if (other.checkSlackSec != null)
+				return false;
+		} else if (!checkSlackSec.equals(other.checkSlackSec))
+			return false;
 		return true;
 	}
 }
\ No newline at end of file
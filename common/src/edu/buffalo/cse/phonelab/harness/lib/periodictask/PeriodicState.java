@@ -3,6 +3,9 @@ package edu.buffalo.cse.phonelab.harness.lib.periodictask;
 import java.util.Date;
 
 import org.simpleframework.xml.Element;
+import org.simpleframework.xml.Root;
+
+import edu.buffalo.cse.phonelab.harness.lib.metrics.MetricsSnapshot;
 
 public class PeriodicState {
 	
@@ -21,19 +24,28 @@ public class PeriodicState {
 	@Element(required=false)
 	PeriodicParameters parameters;
 	
+	@Element(required=false)
+	WakeLockStats wakeLock;
+	
+	@Element(required=false)
+	MetricsSnapshot metrics;
+	
 	public PeriodicState() {
 		this.started = new Date(0L);
 		this.restarted = new Date(0L);
 		this.lastCheck = new Date(0L);
 		this.parameterUpdate = new Date(0L);
 		this.parameters = null;
+		this.wakeLock = new WakeLockStats();
+		this.metrics = null;
 	}
 	
 	@Override
 	public String toString() {
 		return "PeriodicState [started=" + started + ", restarted=" + restarted
 				+ ", lastCheck=" + lastCheck + ", parameterUpdate="
-				+ parameterUpdate + "]";
+				+ parameterUpdate + ", wakeLock=" + wakeLock
+				+ ", metrics=" + metrics + "]";
 	}
 	@Override
 	public int hashCode() {
@@ -45,6 +57,8 @@ public class PeriodicState {
 				+ ((parameterUpdate == null) ? 0 : parameterUpdate.hashCode());
 		result = prime * result
 				+ ((restarted == null) ? 0 : restarted.hashCode());
+		result = prime * result
+				+ ((wakeLock == null) ? 0 : wakeLock.hashCode());
 		result = prime * result + ((started == null) ? 0 : started.hashCode());
 		return result;
 	}
@@ -77,6 +91,109 @@ public class PeriodicState {
 				return false;
 		} else if (!started.equals(other.started))
 			return false;
+		if (wakeLock == null) {
+			if (other.wakeLock != null)
+				return false;
+		} else if (!wakeLock.equals(other.wakeLock))
+			return false;
 		return true;
 	}
 }
+
+@Root(name="WakeLockStats")
+class WakeLockStats {
+	
+	@Element
+	Long acquired;
+	
+	@Element
+	Long unmatchedReleases;
+	
+	@Element
+	Long heldMS;
+	
+	@Element
+	Long longestHeldMS;
+	
+	@Element
+	Date longestHeld;
+	
+	/* hold time histogram */
+	
+	@Element
+	Long under1s;
+	
+	@Element
+	Long under10s;
+	
+	@Element
+	Long under1m;
+	
+	@Element
+	Long under10m;
+	
+	@Element
+	Long over10m;
+	
+	public WakeLockStats() {
+		acquired = unmatchedReleases = heldMS = longestHeldMS = 0L;
+		under1s = under10s = under1m = under10m = over10m = 0L;
+		longestHeld = new Date(0L);
+	}
+	
+	void held(long holdMS) {
+		acquired++;
+		heldMS += holdMS;
+		if (holdMS > longestHeldMS) {
+			longestHeldMS = holdMS;
+			longestHeld = new Date();
+		}
+		if (holdMS < 1000L) {
+			under1s++;
+		} else if (holdMS < 10 * 1000L) {
+			under10s++;
+		} else if (holdMS < 60 * 1000L) {
+			under1m++;
+		} else if (holdMS < 10 * 60 * 1000L) {
+			under10m++;
+		} else {
+			over10m++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WakeLockStats [acquired=" + acquired + ", unmatchedReleases="
+				+ unmatchedReleases + ", heldMS=" + heldMS
+				+ ", longestHeldMS=" + longestHeldMS + "]";
+	}
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + acquired.hashCode();
+		result = prime * result + unmatchedReleases.hashCode();
+		result = prime * result + heldMS.hashCode();
+		result = prime * result + longestHeldMS.hashCode();
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		WakeLockStats other = (WakeLockStats) obj;
+		return acquired.equals(other.acquired) &&
+				unmatchedReleases.equals(other.unmatchedReleases) &&
+				heldMS.equals(other.heldMS) &&
+				longestHeldMS.equals(other.longestHeldMS) &&
+				under1s.equals(other.under1s) &&
+				under10s.equals(other.under10s) &&
+				under1m.equals(other.under1m) &&
+				under10m.equals(other.under10m) &&
+				over10m.equals(other.over10m);
+	}
+}
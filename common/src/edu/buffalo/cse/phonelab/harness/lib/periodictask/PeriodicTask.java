@@ -1,18 +1,14 @@
 package edu.buffalo.cse.phonelab.harness.lib.periodictask;
 
-import java.io.StringWriter;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
-
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -26,8 +22,11 @@ import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
 import android.util.Log;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.ManifestClient;
+import edu.buffalo.cse.phonelab.harness.lib.metrics.Histogram;
+import edu.buffalo.cse.phonelab.harness.lib.metrics.MetricsRegistry;
 import edu.buffalo.cse.phonelab.harness.lib.services.ManifestService;
 import edu.buffalo.cse.phonelab.harness.lib.services.ManifestService.ManifestBinder;
+import edu.buffalo.cse.phonelab.harness.lib.util.Serialization;
 
 public abstract class PeriodicTask<P extends PeriodicParameters, S extends PeriodicState> implements ManifestClient {
 	
@@ -44,12 +43,13 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 	protected P initialParameters;
 	
 	protected final ReentrantLock parameterLock = new ReentrantLock();
+	private ParameterStore parameterStore;
 	
 	public abstract S newState();
 	public S state = newState();
 	protected final ReentrantLock stateLock = new ReentrantLock();
+	protected final MetricsRegistry metrics = new MetricsRegistry();
 	
-	private PendingIntent pendingIntent;
 	protected Context context;
 	protected String key;
 	
@@ -66,12 +66,12 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 		
 		this.intentFilter = new IntentFilter(CHECK_INTENT_NAME);
 		
-		SharedPreferences sharedPreferences = context.getSharedPreferences(PARAMETER_PREFERENCES_NAME, 0);
-		String savedParameterString = sharedPreferences.getString(PARAMETER_PREFERENCES_KEY, null);
-		
-		if (savedParameterString != null) {
-			Log.v(TAG, "Attempting to retrieve parameters from shared preferences.");
-			initialParameters = deserializeParameters(savedParameterString);
+		parameterStore = new ParameterStore(context, PARAMETER_PREFERENCES_NAME);
+		P storedParameters = newParameters();
+		if (parameterStore.read(storedParameters)) {
+			initialParameters = storedParameters;
+		} else {
+			recoverLegacyParameters();
 		}
 		if (initialParameters != null) {
 			Log.v(TAG, "Recovered saved parameters.");
@@ -82,13 +82,26 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 		Log.v(TAG, "Created task.");
 	}
 	
+	/* parameters saved as XML in shared preferences before the binary store existed */
+	private void recoverLegacyParameters() {
+		SharedPreferences sharedPreferences = context.getSharedPreferences(PARAMETER_PREFERENCES_NAME, 0);
+		String savedParameterString = sharedPreferences.getString(PARAMETER_PREFERENCES_KEY, null);
+		
+		if (savedParameterString != null) {
+			Log.v(TAG, "Attempting to retrieve parameters from shared preferences.");
+			initialParameters = deserializeParameters(savedParameterString);
+			if (initialParameters != null) {
+				parameterStore.save(initialParameters);
+				sharedPreferences.edit().remove(PARAMETER_PREFERENCES_KEY).commit();
+			}
+		}
+	}
+	
 	public synchronized void start() {
 		Log.v(TAG, "Starting periodic task.");
 			
 		context.registerReceiver(broadcastReceiver, intentFilter);
 		
-		pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(CHECK_INTENT_NAME), PendingIntent.FLAG_UPDATE_CURRENT);
-		
 		Intent manifestServiceIntent = new Intent(context, ManifestService.class);
 		context.bindService(manifestServiceIntent, manifestServiceConnection, Context.BIND_AUTO_CREATE);
 				
@@ -103,6 +116,7 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 		
 		Log.v(TAG, "Stopping alarm.");
 		stopAlarm();
+		AlarmScheduler.getInstance(context).cancelCheck(this);
 		
 		Log.v(TAG, "Deregistering from manifest updates.");
 		manifestService.discardManifestUpdates(PeriodicTask.this.key);
@@ -117,7 +131,11 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 			Log.e(TAG, "Exception while shutting down check task executor:" + e);
 		}
 		
-		saveParameters();
+		synchronized (parameterLock) {
+			if (parameters != null) {
+				parameterStore.saveNow(parameters);
+			}
+		}
 		
 		Log.v(TAG, "Task stopped.");
 	}
@@ -205,42 +223,28 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 	
 	private P deserializeParameters(String parameterString) {
 		try {
-			return new Persister().read(parameterClass(), parameterString);
+			return Serialization.read(parameterClass(), parameterString);
 		} catch (Exception e) {
 			Log.e(TAG, "Could not deserialize string " + parameterString + ": " + e.toString());
 			return null;
 		}
 	}
 	
-	private String serializeParameters(P parameters) {
-		StringWriter stringWriter = new StringWriter();
-		Serializer serializer = new Persister();
-		try {
-			serializer.write(parameters, stringWriter);
-		} catch (Exception e) {
-			Log.e(TAG, "Problem serializing parameters: " + e);
-			return null;
-		}
-		String xmlState = stringWriter.toString();
-		return xmlState;
-	}
-	
 	@Override
 	public String getState() {
-		StringWriter stringWriter = new StringWriter();
-		Serializer serializer = new Persister();
+		String xmlState;
 		synchronized (parameterLock) {
 			state.parameters = newParameters(parameters);
 		}
 		synchronized (stateLock) {
+			state.metrics = metrics.snapshot();
 			try {
-				serializer.write(state, stringWriter);
+				xmlState = Serialization.write(state);
 			} catch (Exception e) {
 				Log.e(TAG, "Problem serializing state: " + e);
 				return null;
 			}
 		}
-		String xmlState = stringWriter.toString();
 		Log.v(TAG, "Serialized state: " + xmlState);
 		return xmlState;
 	}
@@ -253,7 +257,7 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 			return true;
 		}
 		
-		acquireLock(context);
+		acquireLock();
 		if (parameters != null) {
 			Log.v(TAG, "Old parameters: " + parameters.toString());
 		}
@@ -280,11 +284,9 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 	}
 	
 	protected void saveParameters() {
-		Log.v(TAG, "Saving parameters as shared preference.");
+		Log.v(TAG, "Saving parameters.");
 		synchronized (parameterLock) {
-			SharedPreferences.Editor sharedPreferencesEditor = context.getSharedPreferences(PARAMETER_PREFERENCES_NAME, 0).edit();
-			sharedPreferencesEditor.putString(PARAMETER_PREFERENCES_KEY, serializeParameters(parameters));
-			sharedPreferencesEditor.commit();
+			parameterStore.save(parameters);
 		}
 	}
 	
@@ -300,59 +302,148 @@ public abstract class PeriodicTask<P extends PeriodicParameters, S extends Perio
 	protected abstract void check(P parameters);
 	private ExecutorService checkExecutor = Executors.newSingleThreadExecutor();
 	
+	/*
+	 * At most one check is queued at a time. Requests that arrive while one is
+	 * pending fold into it, and the check picks up whatever parameters are current
+	 * when it starts. Checks start at least minCheckGapSec apart. A check that has
+	 * to wait is deferred to a wakeup through AlarmScheduler, so the device can
+	 * sleep through the gap, and the wakelock is only taken once it is due.
+	 */
+	private final AtomicBoolean checkPending = new AtomicBoolean(false);
+	private volatile long lastCheckStarted = 0L;
+	private volatile long deferredCheckDueAt = 0L;
+	
+	/* runs with the wakelock taken by submitCheck() */
 	public class Check implements Runnable {
-		private P taskParameters;
-		public Check(P parameters) {
+		private long dueAt;
+		public Check(long dueAt) {
 			super();
-			this.taskParameters = parameters;
+			this.dueAt = dueAt;
 		}
 		@Override
 		public void run() {
 			Log.v(TAG, "Starting check task.");
-			acquireLock(PeriodicTask.this.context);
-			check(this.taskParameters);
-			releaseLock();
+			try {
+				checkPending.set(false);
+				lastCheckStarted = SystemClock.elapsedRealtime();
+				metrics.histogram("checkQueueDelayMS", Histogram.LATENCY_MS).record(Math.max(0L, lastCheckStarted - dueAt));
+				P taskParameters;
+				synchronized (parameterLock) {
+					taskParameters = parameters;
+				}
+				synchronized (stateLock) {
+					state.lastCheck = new Date();
+				}
+				check(taskParameters);
+				metrics.histogram("checkDurationMS", Histogram.LATENCY_MS).record(SystemClock.elapsedRealtime() - lastCheckStarted);
+			} finally {
+				releaseLock();
+			}
 			Log.v(TAG, "Check task finished.");
 		}
 	}
 	
 	public void scheduleCheckTask() {
+		if (checkPending.compareAndSet(false, true) == false) {
+			Log.v(TAG, "Check already pending.");
+			metrics.counter("checksCoalesced").increment();
+			return;
+		}
+		long delayMS;
+		long now = SystemClock.elapsedRealtime();
 		synchronized (parameterLock) {
-			checkExecutor.execute(new Check(parameters));
+			long gapMS = (parameters == null) ? 0L : parameters.getMinCheckGapMS();
+			delayMS = lastCheckStarted + gapMS - now;
 		}
+		if (lastCheckStarted == 0L || delayMS <= 0L) {
+			submitCheck(now);
+		} else {
+			Log.v(TAG, "Deferring check by " + delayMS + "ms.");
+			deferredCheckDueAt = now + delayMS;
+			AlarmScheduler.getInstance(context).scheduleCheck(this, delayMS);
+		}
+	}
+	
+	void deferredCheckDue() {
+		Log.v(TAG, "Deferred check due.");
+		submitCheck(deferredCheckDueAt);
 	}
 	
+	private void submitCheck(long dueAt) {
+		/* hold the device awake until the check picks this up */
+		acquireLock();
+		try {
+			checkExecutor.execute(new Check(dueAt));
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Not scheduling check on stopped task.");
+			checkPending.set(false);
+			releaseLock();
+		}
+	}
+	
+	/* alarms go through the shared AlarmScheduler, intervals are in seconds */
 	synchronized public final void startPeriodic(long interval) {
 		long intervalMS = interval * 1000;
-		stopAlarm();
-		AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-		manager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-				SystemClock.elapsedRealtime() + intervalMS,
-				intervalMS, pendingIntent);
+		P current = parameters;
+		long slackMS = (current == null) ? 0L : current.getCheckSlackMS(intervalMS);
+		AlarmScheduler.getInstance(context).schedule(this, intervalMS, intervalMS, slackMS);
 	}
 	synchronized public final void startOneShot(long interval) {
 		long intervalMS = interval * 1000;
-		stopAlarm();
-		AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-		manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + intervalMS, pendingIntent);
+		AlarmScheduler.getInstance(context).schedule(this, intervalMS, 0L, 0L);
 	}
 	synchronized public final void stopAlarm() {
-		AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-		manager.cancel(pendingIntent);
+		AlarmScheduler.getInstance(context).cancel(this);
 	}
 	
-	private static WakeLock lock = null;
-	synchronized public final static void acquireLock(Context context) {
-		if (lock == null) {
-			PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-			lock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, PeriodicTask.class.getName());
-			lock.setReferenceCounted(true);
-		}
-		lock.acquire();
+	void alarmFired() {
+		Log.v(TAG, "Alarm fired.");
+		scheduleCheckTask();
 	}
-	synchronized public final static void releaseLock() {
-		if (lock != null && lock.isHeld()) {
-			lock.release();
+	
+	/*
+	 * Each task holds its own wakelock, tagged with the task name, and counts nested
+	 * acquires itself. The platform lock is taken on the outermost acquire and dropped
+	 * on the matching release, and that hold is recorded in state.wakeLock. A release
+	 * with nothing held is counted and otherwise ignored.
+	 */
+	private WakeLock lock = null;
+	private int lockDepth = 0;
+	private long lockAcquired;
+	private final Object wakeLockMonitor = new Object();
+	
+	public final void acquireLock() {
+		synchronized (wakeLockMonitor) {
+			if (lock == null) {
+				PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+				lock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+				lock.setReferenceCounted(false);
+			}
+			if (lockDepth == 0) {
+				lock.acquire();
+				lockAcquired = SystemClock.elapsedRealtime();
+			}
+			lockDepth++;
+		}
+	}
+	
+	public final void releaseLock() {
+		synchronized (wakeLockMonitor) {
+			if (lockDepth == 0) {
+				Log.w(TAG, "Wakelock released without a matching acquire.");
+				synchronized (stateLock) {
+					state.wakeLock.unmatchedReleases++;
+				}
+				return;
+			}
+			lockDepth--;
+			if (lockDepth == 0) {
+				lock.release();
+				long heldMS = SystemClock.elapsedRealtime() - lockAcquired;
+				synchronized (stateLock) {
+					state.wakeLock.held(heldMS);
+				}
+			}
 		}
 	}
 }
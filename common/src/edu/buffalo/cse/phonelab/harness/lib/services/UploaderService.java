@@ -1,6 +1,7 @@
 package edu.buffalo.cse.phonelab.harness.lib.services;
 
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderClient;
+import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
 import edu.buffalo.cse.phonelab.harness.lib.tasks.UploaderTask;
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -50,6 +51,16 @@ public class UploaderService extends Service {
 		}
 	}
 	
+	public boolean enqueue(UploaderClient uploader, UploaderFileDescription uploaderFileDescription) {
+		if ((started == true) &&
+			(uploaderTask != null)) {
+			return uploaderTask.enqueue(uploader, uploaderFileDescription);
+		} else {
+			Log.w(TAG, "Logger tried to enqueue while shut down.");
+			return false;
+		}
+	}
+	
 	private UploaderTask uploaderTask;
 	
 	@Override
@@ -1,8 +1,16 @@
 package edu.buffalo.cse.phonelab.harness.lib.tasks;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
@@ -10,12 +18,18 @@ import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
 import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.ActivityManager.RunningServiceInfo;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
+import edu.buffalo.cse.phonelab.harness.lib.periodictask.ParameterStore;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicParameters;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicState;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicTask;
@@ -23,20 +37,144 @@ import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicTask;
 public class LauncherTask extends PeriodicTask<LauncherParameters, LauncherState> {
 	
 	private static final Integer MIN_INTERVAL_MS = 10000;
+	private static final long HEARTBEAT_TIMEOUT_MS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+	
+	public static final String HEARTBEAT_INTENT_NAME = LauncherTask.class.getName() + ".Heartbeat";
+	public static final String HEARTBEAT_EXTRA_PACKAGE = "package";
+	/*
+	 * Signature-level permission declared in the harness manifests. Only senders holding it
+	 * reach heartbeatReceiver, so other apps cannot keep a service alive by forging the
+	 * package extra. Experiment apps must be signed with the harness key and declare
+	 * <uses-permission android:name="edu.buffalo.cse.phonelab.harness.permission.HEARTBEAT"/>.
+	 */
+	public static final String HEARTBEAT_PERMISSION = "edu.buffalo.cse.phonelab.harness.permission.HEARTBEAT";
+	
+	private HashMap<ScheduledService, SupervisedService> supervisedServices = new HashMap<ScheduledService, SupervisedService>();
+	private ConcurrentHashMap<String, Long> heartbeats = new ConcurrentHashMap<String, Long>();
+	private volatile HashSet<String> polledPackages = null;
+	private long polled = 0L;
+	
+	/*
+	 * Scheduled services are bound with no flags, which neither starts them nor keeps them
+	 * alive, so a service that returns a binder is known to be running until the binder
+	 * dies and the death schedules a check. Services without a binder can broadcast
+	 * HEARTBEAT_INTENT_NAME with their package name at least every HEARTBEAT_TIMEOUT_MS,
+	 * which requires holding HEARTBEAT_PERMISSION.
+	 */
+	private class SupervisedService implements ServiceConnection {
+		ScheduledService scheduledService;
+		volatile IBinder binder;
+		volatile boolean connected;
+		boolean bound;
+		
+		public SupervisedService(ScheduledService scheduledService) {
+			this.scheduledService = scheduledService;
+			this.connected = false;
+			this.bound = false;
+		}
+		
+		public void bind() {
+			if (bound == false) {
+				try {
+					bound = context.bindService(new Intent(scheduledService.intentName), this, 0);
+				} catch (Exception e) {
+					Log.w(TAG, "Unable to bind " + scheduledService + ": " + e);
+				}
+			}
+		}
+		
+		public void unbind() {
+			if (bound == true) {
+				try {
+					context.unbindService(this);
+				} catch (Exception e) { }
+				bound = false;
+			}
+		}
+		
+		public Long lastHeartbeat() {
+			return heartbeats.get(scheduledService.packageName);
+		}
+		
+		/*
+		 * null when nothing is known, in which case the caller has to ask. A missed
+		 * heartbeat counts as a death once, after which the service is unknown again.
+		 */
+		public Boolean isAlive(long now) {
+			if (binder != null) {
+				return true;
+			}
+			Long lastHeartbeat = lastHeartbeat();
+			if (lastHeartbeat != null) {
+				if (now - lastHeartbeat < HEARTBEAT_TIMEOUT_MS) {
+					return true;
+				}
+				heartbeats.remove(scheduledService.packageName);
+				metrics.counter("serviceDeaths").increment();
+				return false;
+			}
+			return connected ? false : null;
+		}
+		
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			Log.v(TAG, "PhoneLab service " + scheduledService + " connected.");
+			binder = service;
+			connected = true;
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			Log.w(TAG, "PhoneLab service " + scheduledService + " died.");
+			binder = null;
+			metrics.counter("serviceDeaths").increment();
+			scheduleCheckTask();
+		}
+	}
+	
+	private SupervisedService supervise(ScheduledService scheduledService) {
+		SupervisedService supervisedService = supervisedServices.get(scheduledService);
+		if (supervisedService == null) {
+			supervisedService = new SupervisedService(scheduledService);
+			supervisedServices.put(scheduledService, supervisedService);
+		}
+		supervisedService.bind();
+		return supervisedService;
+	}
+	
+	/*
+	 * Services that neither bind nor send heartbeats fall back to getRunningServices(), at
+	 * most once per checkInterval unless a package change has invalidated the last answer.
+	 */
+	private boolean isRunning(SupervisedService supervisedService, LauncherParameters parameters, long now) {
+		Boolean alive = supervisedService.isAlive(now);
+		if (alive != null) {
+			return alive;
+		}
+		if (polledPackages == null || now - polled >= parameters.checkInterval * 1000L) {
+			polledPackages = new HashSet<String>();
+			ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);	
+			for (RunningServiceInfo runningServiceInfo : activityManager.getRunningServices(Integer.MAX_VALUE)) {
+				polledPackages.add(runningServiceInfo.service.getPackageName());
+			}
+			polled = now;
+			metrics.counter("runningServicesQueries").increment();
+		}
+		return polledPackages.contains(supervisedService.scheduledService.packageName);
+	}
 	
 	public synchronized void check(LauncherParameters parameters) {
 		
 		Date now = new Date();
-		HashSet<String> runningServices = new HashSet<String>();
-		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);	
-		for (RunningServiceInfo runningServiceInfo : activityManager.getRunningServices(Integer.MAX_VALUE)) {
-			runningServices.add(runningServiceInfo.service.getPackageName());
-		}
+		long elapsed = SystemClock.elapsedRealtime();
+		HashSet<ScheduledService> scheduledServices = new HashSet<ScheduledService>();
 		
 		synchronized(stateLock) {
 			state.runningServices.clear();
 			for (ScheduledService startingService : parameters.currentRunningServices(now)) {
-				if (runningServices.contains(startingService.packageName)) {
+				scheduledServices.add(startingService);
+				SupervisedService supervisedService = supervise(startingService);
+				if (isRunning(supervisedService, parameters, elapsed)) {
 					state.runningServices.add(startingService);
 					Log.v(TAG, "PhoneLab service " + startingService + " is running.");
 				} else {
@@ -56,7 +194,8 @@ public class LauncherTask extends PeriodicTask<LauncherParameters, LauncherState
 			// 				 stopService method doesn't work reliably.
 			
 			for (ScheduledService stoppingService : parameters.currentStoppedServices(now)) {
-				if (!(runningServices.contains(stoppingService.packageName))) {
+				scheduledServices.add(stoppingService);
+				if (!(isRunning(supervise(stoppingService), parameters, elapsed))) {
 					Log.v(TAG, "PhoneLab service " + stoppingService + " is not running.");
 				} else {
 					state.runningServices.add(stoppingService);
@@ -71,26 +210,72 @@ public class LauncherTask extends PeriodicTask<LauncherParameters, LauncherState
 			}
 			
 			for (ScheduledService checkingService : parameters.currentCheckingServices(now)) {
-				if (!(runningServices.contains(checkingService.packageName))) {
+				scheduledServices.add(checkingService);
+				if (!(isRunning(supervise(checkingService), parameters, elapsed))) {
 					Log.v(TAG, "PhoneLab service " + checkingService + " is not running.");
 				} else {
 					state.runningServices.add(checkingService);
 					Log.v(TAG, "PhoneLab service " + checkingService + " is running.");
 				}
 			}
-		
-			Long nextInterval = Math.min(parameters.nextEvent(now).getTime() - now.getTime(), parameters.checkInterval * 1000);
-			nextInterval = Math.max(nextInterval, MIN_INTERVAL_MS);
-			Log.v(TAG, "Setting timer for " + nextInterval + " ms.");
-			state.nextInterval = nextInterval;
-			startOneShot(nextInterval);
+			
+			// Only schedule boundaries, heartbeat deadlines and unsupervised services need
+			// a timer; deaths and package changes schedule their own checks.
+			
+			Iterator<SupervisedService> iterator = supervisedServices.values().iterator();
+			long nextInterval = parameters.nextEvent(now).getTime() - now.getTime();
+			int unsupervised = 0;
+			while (iterator.hasNext()) {
+				SupervisedService supervisedService = iterator.next();
+				if (scheduledServices.contains(supervisedService.scheduledService) == false) {
+					supervisedService.unbind();
+					iterator.remove();
+					continue;
+				}
+				Long lastHeartbeat = supervisedService.lastHeartbeat();
+				if (supervisedService.binder != null) {
+					continue;
+				} else if (lastHeartbeat != null) {
+					nextInterval = Math.min(nextInterval, lastHeartbeat + HEARTBEAT_TIMEOUT_MS - elapsed);
+				} else {
+					unsupervised++;
+				}
+			}
+			if (unsupervised > 0) {
+				nextInterval = Math.min(nextInterval, parameters.checkInterval * 1000);
+			}
+			state.supervisedServices = supervisedServices.size() - unsupervised;
+			
+			if (nextInterval > Long.MAX_VALUE / 2) {
+				Log.v(TAG, "All services supervised and no schedule boundary ahead. Not setting timer.");
+				state.nextInterval = 0L;
+				stopAlarm();
+			} else {
+				nextInterval = Math.max(nextInterval, MIN_INTERVAL_MS);
+				Log.v(TAG, "Setting timer for " + nextInterval + " ms.");
+				state.nextInterval = nextInterval;
+				startOneShot(nextInterval / 1000L);
+			}
 		}
 	}
 	
+	public BroadcastReceiver heartbeatReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context arg0, Intent arg1) {
+			String packageName = arg1.getStringExtra(HEARTBEAT_EXTRA_PACKAGE);
+			if (packageName != null) {
+				heartbeats.put(packageName, SystemClock.elapsedRealtime());
+			}
+		}
+	};
+	
+	IntentFilter heartbeatIntentFilter = new IntentFilter(HEARTBEAT_INTENT_NAME);
+	
 	public BroadcastReceiver packageReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context arg0, Intent arg1) {
 			Log.v(TAG, "Package intent fired.");
+			polledPackages = null;
 			scheduleCheckTask();
 		}
 	};
@@ -111,17 +296,25 @@ public class LauncherTask extends PeriodicTask<LauncherParameters, LauncherState
 	@Override
 	public synchronized void start () {
 		this.context.registerReceiver(packageReceiver, packageIntentFilter);
+		this.context.registerReceiver(heartbeatReceiver, heartbeatIntentFilter, HEARTBEAT_PERMISSION, null);
 		super.start();
 	}
 	
 	@Override
 	public void stop() {
 		this.context.unregisterReceiver(packageReceiver);
+		this.context.unregisterReceiver(heartbeatReceiver);
 		
 		LauncherParameters shutdownParameters = new LauncherParameters();
 		shutdownParameters.stoppedServices.addAll(parameters.runningServices);
 		shutdownParameters.stoppedServices.addAll(parameters.stoppedServices);
 		check(shutdownParameters);
+		synchronized (this) {
+			for (SupervisedService supervisedService : supervisedServices.values()) {
+				supervisedService.unbind();
+			}
+			supervisedServices.clear();
+		}
 		stopAlarm();
 		super.stop();
 	}
@@ -173,41 +366,69 @@ class LauncherParameters extends PeriodicParameters {
 		checkingServices = new HashSet<ScheduledService>(parameters.checkingServices);
 	}
 	
-	private HashSet<ScheduledService> filterServices(HashSet<ScheduledService> services, Date now) {
-		HashSet<ScheduledService> filteredServices = new HashSet<ScheduledService>();
+	private static void writeServices(DataOutput out, HashSet<ScheduledService> services) throws IOException {
+		out.writeInt(services.size());
 		for (ScheduledService scheduledService : services) {
-			if ((scheduledService.startTime.before(now)) && scheduledService.endTime.after(now)) {
-				filteredServices.add(scheduledService);
-			}
+			ParameterStore.writeDate(out, scheduledService.startTime);
+			ParameterStore.writeDate(out, scheduledService.endTime);
+			ParameterStore.writeString(out, scheduledService.intentName);
+			ParameterStore.writeString(out, scheduledService.packageName);
 		}
-		return filteredServices;
 	}
 	
-	public HashSet<ScheduledService> currentRunningServices(Date now) {
-		return filterServices(runningServices, now);
+	private static HashSet<ScheduledService> readServices(DataInput in) throws IOException {
+		HashSet<ScheduledService> services = new HashSet<ScheduledService>();
+		for (int count = in.readInt(); count > 0; count--) {
+			Date startTime = ParameterStore.readDate(in);
+			Date endTime = ParameterStore.readDate(in);
+			String intentName = ParameterStore.readString(in);
+			String packageName = ParameterStore.readString(in);
+			services.add(new ScheduledService(startTime, endTime, intentName, packageName));
+		}
+		return services;
 	}
 	
-	public HashSet<ScheduledService> currentStoppedServices(Date now) {
-		return filterServices(stoppedServices, now);
+	@Override
+	public void writeFields(DataOutput out) throws IOException {
+		super.writeFields(out);
+		writeServices(out, runningServices);
+		writeServices(out, stoppedServices);
+		writeServices(out, checkingServices);
 	}
 	
-	public HashSet<ScheduledService> currentCheckingServices(Date now) {
-		return filterServices(checkingServices, now);
+	@Override
+	public void readFields(DataInput in, int version) throws IOException {
+		super.readFields(in, version);
+		runningServices = readServices(in);
+		stoppedServices = readServices(in);
+		checkingServices = readServices(in);
 	}
 	
-	public Date nextEvent(Date now) {
-		Date currentNext = new Date(Long.MAX_VALUE);
-		ArrayList<ScheduledService> allServices = new ArrayList<ScheduledService>(runningServices);
-		allServices.addAll(stoppedServices);
-		for (ScheduledService scheduledService : allServices) {
-			if (((scheduledService.startTime.after(now)) &&
-				 (scheduledService.startTime.before(currentNext))) || 
-				((scheduledService.endTime.after(now)) &&
-				 (scheduledService.endTime.before(currentNext)))) {
-				currentNext = scheduledService.startTime;
-			}
+	/* built on first use; parameters are replaced rather than edited once in use */
+	private ScheduleIndex scheduleIndex;
+	
+	private synchronized ScheduleIndex scheduleIndex() {
+		if (scheduleIndex == null) {
+			scheduleIndex = new ScheduleIndex(runningServices, stoppedServices, checkingServices);
 		}
-		return currentNext;
+		return scheduleIndex;
+	}
+	
+	public ArrayList<ScheduledService> currentRunningServices(Date now) {
+		return scheduleIndex().running.stab(now.getTime());
+	}
+	
+	public ArrayList<ScheduledService> currentStoppedServices(Date now) {
+		return scheduleIndex().stopped.stab(now.getTime());
+	}
+	
+	public ArrayList<ScheduledService> currentCheckingServices(Date now) {
+		return scheduleIndex().checking.stab(now.getTime());
+	}
+	
+	/* the first start or end of a running or stopped service after now */
+	public Date nextEvent(Date now) {
+		return new Date(scheduleIndex().nextBoundary(now.getTime()));
 	}
 
 	@Override
@@ -259,6 +480,128 @@ class LauncherParameters extends PeriodicParameters {
 	}
 }
 
+/*
+ * Answers which services are scheduled at a time and when the schedule next changes.
+ * Boundaries are kept sorted for a binary search. Each group of services is an
+ * implicit interval tree: sorted by start, with the subtree rooted at the middle of
+ * every range also recording the latest end within it, so a query only descends into
+ * ranges that can still contain a match and costs O(log n) plus the matches.
+ */
+class ScheduleIndex {
+	
+	final IntervalTree running;
+	final IntervalTree stopped;
+	final IntervalTree checking;
+	private final long[] boundaries;
+	
+	public ScheduleIndex(HashSet<ScheduledService> runningServices, HashSet<ScheduledService> stoppedServices, HashSet<ScheduledService> checkingServices) {
+		running = new IntervalTree(runningServices);
+		stopped = new IntervalTree(stoppedServices);
+		checking = new IntervalTree(checkingServices);
+		
+		long[] all = new long[2 * (runningServices.size() + stoppedServices.size())];
+		int count = 0;
+		for (IntervalTree tree : new IntervalTree[] { running, stopped }) {
+			for (int i = 0; i < tree.services.length; i++) {
+				all[count++] = tree.starts[i];
+				all[count++] = tree.ends[i];
+			}
+		}
+		Arrays.sort(all);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || all[i] != all[unique - 1]) {
+				all[unique++] = all[i];
+			}
+		}
+		boundaries = Arrays.copyOf(all, unique);
+	}
+	
+	public long nextBoundary(long now) {
+		int low = 0;
+		int high = boundaries.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (boundaries[middle] <= now) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return (low < boundaries.length) ? boundaries[low] : Long.MAX_VALUE;
+	}
+	
+	static class IntervalTree {
+		
+		final ScheduledService[] services;
+		final long[] starts;
+		final long[] ends;
+		private final long[] maxEnds;
+		
+		public IntervalTree(HashSet<ScheduledService> scheduledServices) {
+			services = scheduledServices.toArray(new ScheduledService[scheduledServices.size()]);
+			Arrays.sort(services, new Comparator<ScheduledService>() {
+				@Override
+				public int compare(ScheduledService s1, ScheduledService s2) {
+					long start1 = startOf(s1);
+					long start2 = startOf(s2);
+					return (start1 < start2) ? -1 : ((start1 == start2) ? 0 : 1);
+				}
+			});
+			starts = new long[services.length];
+			ends = new long[services.length];
+			maxEnds = new long[services.length];
+			for (int i = 0; i < services.length; i++) {
+				starts[i] = startOf(services[i]);
+				ends[i] = endOf(services[i]);
+			}
+			build(0, services.length);
+		}
+		
+		private static long startOf(ScheduledService scheduledService) {
+			return (scheduledService.startTime == null) ? 0L : scheduledService.startTime.getTime();
+		}
+		
+		private static long endOf(ScheduledService scheduledService) {
+			return (scheduledService.endTime == null) ? Long.MAX_VALUE : scheduledService.endTime.getTime();
+		}
+		
+		private long build(int low, int high) {
+			if (low >= high) {
+				return Long.MIN_VALUE;
+			}
+			int middle = (low + high) >>> 1;
+			maxEnds[middle] = Math.max(ends[middle], Math.max(build(low, middle), build(middle + 1, high)));
+			return maxEnds[middle];
+		}
+		
+		/* services with start < now < end, in start order */
+		public ArrayList<ScheduledService> stab(long now) {
+			ArrayList<ScheduledService> matches = new ArrayList<ScheduledService>();
+			stab(now, 0, services.length, matches);
+			return matches;
+		}
+		
+		private void stab(long now, int low, int high, ArrayList<ScheduledService> matches) {
+			if (low >= high) {
+				return;
+			}
+			int middle = (low + high) >>> 1;
+			if (maxEnds[middle] <= now) {
+				return;
+			}
+			stab(now, low, middle, matches);
+			if (starts[middle] >= now) {
+				return;
+			}
+			if (ends[middle] > now) {
+				matches.add(services[middle]);
+			}
+			stab(now, middle + 1, high, matches);
+		}
+	}
+}
+
 class ScheduledService {
 	
 	@Attribute(required=false)
@@ -357,6 +700,9 @@ class LauncherState extends PeriodicState {
 	@Element
 	public Long nextInterval;
 	
+	@Element(required=false)
+	public Integer supervisedServices;
+	
 	public LauncherState() {
 		super();
 		runningServices = new ArrayList<ScheduledService>();
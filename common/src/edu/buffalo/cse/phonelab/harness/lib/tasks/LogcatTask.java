@@ -1,12 +1,20 @@
 package edu.buffalo.cse.phonelab.harness.lib.tasks;
  	
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,60 +22,84 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
-import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderClient;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
+import edu.buffalo.cse.phonelab.harness.lib.metrics.Histogram;
+import edu.buffalo.cse.phonelab.harness.lib.periodictask.ParameterStore;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicParameters;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicState;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicTask;
 import edu.buffalo.cse.phonelab.harness.lib.services.UploaderService;
 import edu.buffalo.cse.phonelab.harness.lib.services.UploaderService.LoggerBinder;
+import edu.buffalo.cse.phonelab.harness.lib.util.Serialization;
 import edu.buffalo.cse.phonelab.harness.lib.util.Util;
 
-public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> implements UploaderClient {
+public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> implements UploaderClient, LogcatSegmentListener {
 	
 	private LogcatProcess logcatProcess = null;
 	private ArrayList<LogcatProcess> stoppedLogcatProcesses;
 	
 	public synchronized void check(LogcatParameters parameters) {
+		boolean replaced = true;
 		if (logcatProcess == null) {
 			Log.v(TAG, "No logcat process running. Starting in " + LogcatTask.this.logRoot);
 			logcatProcess = new LogcatProcess(LogcatTask.this.logRoot, parameters);
+			logcatProcess.setSegmentListener(this);
 		} else if (logcatProcess.parameters.equals(parameters) == false) {
 			Log.v(TAG, "Logcat process running but with different parameters.");
 			logcatProcess.stop();
 			stoppedLogcatProcesses.add(logcatProcess);
+			queueStopped(logcatProcess);
 			logcatProcess = new LogcatProcess(LogcatTask.this.logRoot, parameters);
+			logcatProcess.setSegmentListener(this);
+		} else {
+			replaced = false;
 		}
 		if (logcatProcess.isRunning() == false) {
 			Log.v(TAG, "Correct parameters loaded but not yet running. Trying to start.");
+			metrics.counter(replaced ? "logcatStarts" : "logcatRestarts").increment();
 			try {
 				logcatProcess.start();
 			} catch (Exception e) {
 				Log.e(TAG, "Error while starting logcat: " + e);
 			}
 		}
-		updateUploaderFiles();
+		logcatProcess.sealExpired();
+		if (scanned == false) {
+			scanLogFiles();
+			scanned = true;
+		}
+		if (logcatProcess.parameters.isStreaming() == false) {
+			queueRotated(logcatProcess);
+		}
 	}
 	
 	private File logRoot;
+	private boolean scanned = false;
+	
+	private ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+	private HashSet<File> pendingCompactions = new HashSet<File>();
 	
 	public LogcatTask(Context context) {
 		super(context, "LogcatService");
@@ -99,6 +131,7 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 							}
 						} else {
 							Log.v(TAG, "Found old dead logcat process.");
+							oldLogcatProcess.recover();
 							Log.v(TAG, "Adding logs for " + oldLogcatProcess + " to queue.");
 							stoppedLogcatProcesses.add(oldLogcatProcess);
 						}
@@ -117,9 +150,10 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 	@Override
 	public void stop() {
 		try {
-			updateUploaderFiles();
 			uploaderService.unregisterLogger(LogcatTask.this);
 			context.unbindService(uploaderServiceConnection);
+			compactionExecutor.shutdown();
+			compactionExecutor.awaitTermination(60, TimeUnit.SECONDS);
 			super.stop();
 		} catch (Exception e) { };
 	}
@@ -133,6 +167,13 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 			LoggerBinder binder = (LoggerBinder) service;
 			uploaderService = binder.getService();
 			uploaderService.registerLogger(LogcatTask.this, UploaderService.PRIORITY_LOGCAT);
+			synchronized (LogcatTask.this) {
+				ArrayList<File> files = unsentFiles;
+				unsentFiles = new ArrayList<File>();
+				for (File file : files) {
+					send(file);
+				}
+			}
 		}
 		
 		@Override
@@ -142,18 +183,188 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 		}
 	};
 	
-	private ArrayList<File> uploaderFiles = new ArrayList<File>();
+	/*
+	 * Every file is handed to the uploader once, when it is sealed, compressed or left
+	 * behind by a stopped process, and stays here until the uploader reports it done.
+	 * Files queued while the uploader is not bound wait in unsentFiles.
+	 */
+	private HashMap<File, QueuedFile> queuedFiles = new HashMap<File, QueuedFile>();
+	private ArrayList<File> unsentFiles = new ArrayList<File>();
+	
+	private synchronized void queue(File file) {
+		if (queuedFiles.containsKey(file)) {
+			return;
+		}
+		QueuedFile queuedFile;
+		try {
+			queuedFile = new QueuedFile(file);
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to queue " + file.getName() + ": " + e);
+			return;
+		}
+		queuedFiles.put(file, queuedFile);
+		synchronized (stateLock) {
+			state.bytesAvailable += queuedFile.length;
+		}
+		metrics.gauge("uploadBacklogFiles").set(queuedFiles.size());
+		send(file);
+	}
+	
+	private synchronized void forget(File file) {
+		QueuedFile queuedFile = queuedFiles.remove(file);
+		if (queuedFile != null) {
+			synchronized (stateLock) {
+				state.bytesAvailable -= queuedFile.length;
+			}
+			metrics.gauge("uploadBacklogFiles").set(queuedFiles.size());
+		}
+	}
+	
+	private synchronized void send(File file) {
+		if (uploaderService == null) {
+			unsentFiles.add(file);
+			return;
+		}
+		try {
+			UploaderFileDescription uploadFile = new UploaderFileDescription(file.getAbsolutePath(), LogcatProcess.LOG_FILENAME, LogcatTask.this.getClass().getName());
+			if (file.getName().endsWith(LogcatSegment.COMPRESSED_SUFFIX)) {
+				uploadFile.contentEncoding = UploaderFileDescription.ENCODING_GZIP;
+			}
+			if (uploaderService.enqueue(LogcatTask.this, uploadFile) == false) {
+				unsentFiles.add(file);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to hand " + file.getName() + " to the uploader: " + e);
+			forget(file);
+		}
+	}
+	
+	@Override
+	public void segmentSealed(LogcatProcess sealedLogcatProcess, File segment) {
+		synchronized (LogcatTask.this) {
+			Log.v(TAG, "Sealed segment " + segment.getName() + " with length " + segment.length());
+			metrics.counter("segmentsSealed").increment();
+			metrics.counter("bytesCaptured").add(segment.length());
+			if (parameters.isCompressing()) {
+				scheduleCompaction(segment);
+			} else {
+				queue(segment);
+			}
+		}
+	}
+	
+	@Override
+	public void segmentDropped(LogcatProcess logcatProcess, File segment) {
+		forget(segment);
+	}
+	
+	/* files logcat no longer renames, i.e. those claimed under sealed segment names */
+	private ArrayList<File> logFiles(LogcatProcess logcatProcess) throws Exception {
+		if (logcatProcess.parameters.isStreaming()) {
+			return logcatProcess.getLogFiles();
+		}
+		return logcatProcess.claimRotated();
+	}
+	
+	/*
+	 * Compaction only touches files that logcat itself will no longer rename, i.e. sealed
+	 * segments. Anything still waiting to be compressed is held back from the uploader until
+	 * its .gz replacement exists.
+	 */
+	private synchronized ArrayList<File> compactedFiles(ArrayList<File> files) {
+		if (parameters.isCompressing() == false) {
+			return files;
+		}
+		ArrayList<File> compactedFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(LogcatSegment.COMPRESSED_SUFFIX)) {
+				compactedFiles.add(file);
+			} else {
+				scheduleCompaction(file);
+			}
+		}
+		return compactedFiles;
+	}
+	
+	private synchronized void scheduleCompaction(File segment) {
+		if (queuedFiles.containsKey(segment) || pendingCompactions.contains(segment)) {
+			return;
+		}
+		pendingCompactions.add(segment);
+		try {
+			compactionExecutor.execute(new Compaction(segment));
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to schedule compaction of " + segment.getName() + ": " + e);
+			pendingCompactions.remove(segment);
+		}
+	}
+	
+	private class Compaction implements Runnable {
+		private File segment;
+		
+		public Compaction(File segment) {
+			this.segment = segment;
+		}
+		
+		@Override
+		public void run() {
+			File compressed = new File(segment.getPath() + LogcatSegment.COMPRESSED_SUFFIX);
+			File temporary = new File(segment.getPath() + LogcatSegment.TEMPORARY_SUFFIX);
+			boolean compacted = false;
+			long started = SystemClock.elapsedRealtime();
+			if (compressed.exists()) {
+				Log.e(TAG, "Not compressing " + segment.getName() + " over existing " + compressed.getName());
+				metrics.counter("compactionFailures").increment();
+			} else {
+				try {
+					MessageDigest digester = MessageDigest.getInstance(LogcatSegment.HASH_ALGORITHM);
+					long rawLength = segment.length();
+					long length = Util.compressFile(segment, temporary, digester);
+					if (temporary.renameTo(compressed) == false) {
+						throw new IOException("Unable to rename " + temporary.getName());
+					}
+					new LogcatSegment(rawLength, UploaderFileDescription.ENCODING_GZIP, Util.digestToString(digester.digest()), compressed).write(compressed);
+					segment.delete();
+					LogcatSegment.metaFile(segment).delete();
+					compacted = true;
+					Log.v(TAG, "Compressed " + segment.getName() + " from " + rawLength + " to " + length + " bytes.");
+					metrics.histogram("compactionMS", Histogram.LATENCY_MS).record(SystemClock.elapsedRealtime() - started);
+					synchronized (stateLock) {
+						state.rawBytes += rawLength;
+						state.compressedBytes += length;
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "Unable to compress " + segment.getName() + ": " + e);
+					metrics.counter("compactionFailures").increment();
+					temporary.delete();
+					LogcatSegment.metaFile(compressed).delete();
+				}
+			}
+			synchronized (LogcatTask.this) {
+				pendingCompactions.remove(segment);
+				if (compacted == true) {
+					queue(compressed);
+				} else if (segment.exists()) {
+					queue(segment);
+				}
+			}
+		}
+	}
 	
-	private synchronized void updateUploaderFiles() {
+	/*
+	 * Only run on the first check, to pick up whatever earlier runs left on disk; the uploader
+	 * skips files it already has queued. Stopped processes are newest first, and once
+	 * uploadFileCount files are queued the logs of older ones are destroyed.
+	 */
+	private synchronized void scanLogFiles() {
 		
 		ArrayList<LogcatProcess> destroyingLogcatProcesses = new ArrayList<LogcatProcess>();
 		Collections.sort(stoppedLogcatProcesses);
-		uploaderFiles = new ArrayList<File>();
 		
 		for (LogcatProcess stoppedLogcatProcess : stoppedLogcatProcesses) {
 			ArrayList<File> oldFiles;
 			try {
-				oldFiles = stoppedLogcatProcess.getLogFiles();
+				oldFiles = logFiles(stoppedLogcatProcess);
 			} catch (Exception e) {
 				Log.e(TAG, "Unable to get list of log files to upload for stopped logcat process: " + e);
 				continue;
@@ -161,66 +372,120 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 			if (oldFiles.size() == 0) {
 				Log.v(TAG, "No log files for " + stoppedLogcatProcess);
 				destroyingLogcatProcesses.add(stoppedLogcatProcess);
-			} else if (uploaderFiles.size() > parameters.uploadFileCount) {
+			} else if (queuedFiles.size() > parameters.uploadFileCount) {
 				Log.v(TAG, "Upload list too long. Destroying logs for " + stoppedLogcatProcess);
 				destroyingLogcatProcesses.add(stoppedLogcatProcess);		
 			} else {
-				Log.v(TAG, "Adding " + oldFiles);
 				Log.v(TAG, "Adding old log files for " + stoppedLogcatProcess);
-				uploaderFiles.addAll(oldFiles);
+				for (File file : compactedFiles(oldFiles)) {
+					queue(file);
+				}
 			}
 		}
 		
 		for (LogcatProcess destroyingLogcatProcess : destroyingLogcatProcesses) {
-			Log.v(TAG, "Destroying stopped logcat process " + destroyingLogcatProcess);
+			destroy(destroyingLogcatProcess);
+		}
+		
+		if (logcatProcess != null) {
 			try {
-				destroyingLogcatProcess.destroy();
+				for (File file : compactedFiles(logFiles(logcatProcess))) {
+					queue(file);
+				}
 			} catch (Exception e) {
-				Log.e(TAG, "Exception while destroying old logcat process " + e);
+				Log.e(TAG, "Unable to get list of log files to upload for current process: " + e);
 			}
-			stoppedLogcatProcesses.remove(destroyingLogcatProcess);
 		}
-		
+		metrics.gauge("stoppedProcesses").set(stoppedLogcatProcesses.size());
+	}
+	
+	/* streaming processes already sealed their last segment when they stopped */
+	private synchronized void queueStopped(LogcatProcess stoppedLogcatProcess) {
 		try {
-			ArrayList<File> newFiles = logcatProcess.getLogFiles();
-			Log.v(TAG, "Adding " + newFiles);
-			uploaderFiles.addAll(logcatProcess.getLogFiles());
+			ArrayList<File> oldFiles = logFiles(stoppedLogcatProcess);
+			if (oldFiles.isEmpty() && pendingCompactions.isEmpty()) {
+				destroy(stoppedLogcatProcess);
+			} else if (stoppedLogcatProcess.parameters.isStreaming() == false) {
+				for (File file : compactedFiles(oldFiles)) {
+					queue(file);
+				}
+			}
 		} catch (Exception e) {
-			Log.e(TAG, "Unable to get list of log files to upload for current process: " + e);
+			Log.e(TAG, "Unable to get list of log files to upload for stopped logcat process: " + e);
 		}
-		
-		synchronized (stateLock) {
-			state.bytesAvailable = 0L;
-			for (File file : uploaderFiles) {
-				state.bytesAvailable += file.length();
+		metrics.gauge("stoppedProcesses").set(stoppedLogcatProcesses.size());
+	}
+	
+	/*
+	 * Without streaming logcat rotates its own files by renaming them, so the directory of
+	 * the running process is still listed on every check and anything new is claimed under
+	 * a stable name and queued.
+	 */
+	private synchronized void queueRotated(LogcatProcess rotatingLogcatProcess) {
+		try {
+			for (File file : compactedFiles(rotatingLogcatProcess.claimRotated())) {
+				queue(file);
 			}
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to get list of log files to upload for current process: " + e);
 		}
 	}
 	
+	private synchronized void destroy(LogcatProcess destroyingLogcatProcess) {
+		Log.v(TAG, "Destroying stopped logcat process " + destroyingLogcatProcess);
+		try {
+			destroyingLogcatProcess.destroy();
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while destroying old logcat process " + e);
+		}
+		stoppedLogcatProcesses.remove(destroyingLogcatProcess);
+	}
 	
-	@Override
-	public boolean hasNext() {
-		synchronized (LogcatTask.this) {
-			if (uploaderFiles.size() == 0) {
-				return false;
-			} else {
-				return true;
+	/* stopped processes are destroyed once the last of their files is uploaded */
+	private synchronized void destroyIfDrained(File logcatDir) {
+		for (LogcatProcess stoppedLogcatProcess : stoppedLogcatProcesses) {
+			if (stoppedLogcatProcess.logcatDir.equals(logcatDir) == false) {
+				continue;
 			}
+			try {
+				if (stoppedLogcatProcess.getLogFiles().isEmpty()) {
+					destroy(stoppedLogcatProcess);
+					metrics.gauge("stoppedProcesses").set(stoppedLogcatProcesses.size());
+				}
+			} catch (Exception e) { }
+			return;
 		}
 	}
 	
-	private File currentFile = null;
-	private String currentFileHash = null;
-	private void setCurrentFile(File file) throws NoSuchAlgorithmException, IOException {
-		synchronized (LogcatTask.this) {
-			currentFile = file;
-			currentFileHash = Util.hashFile(file);
+	private class QueuedFile {
+		File file;
+		String hash;
+		long length;
+		long modified;
+		
+		/*
+		 * Sealed segments carry the hash computed while they were written or compressed, so
+		 * only files without a usable sidecar are read here. After the upload a full rehash is
+		 * needed only if the length or modification time moved.
+		 */
+		public QueuedFile(File file) throws NoSuchAlgorithmException, IOException {
+			this.file = file;
+			this.length = file.length();
+			this.modified = file.lastModified();
+			LogcatSegment segment = LogcatSegment.read(file);
+			if (segment != null && segment.matches(file)) {
+				this.hash = segment.hash;
+			} else {
+				this.hash = Util.hashFile(file);
+			}
 		}
-	}
-	private boolean checkCurrentFile() {
-		synchronized (LogcatTask.this) {
+		
+		public boolean check() {
 			try {
-				if (Util.hashFile(currentFile).equals(currentFileHash)) {
+				if (file.length() == length &&
+					file.lastModified() == modified) {
+					return true;
+				} else if (Util.hashFile(file).equals(hash)) {
 					return true;
 				} else {
 					return false;
@@ -230,84 +495,59 @@ public class LogcatTask extends PeriodicTask<LogcatParameters, LogcatState> impl
 			}
 		}
 	}
-	private void clearCurrentFile() {
-		synchronized (LogcatTask.this) {
-			currentFile = null;
-			currentFileHash = null;
-		}
-	}
-	
-	@Override
-	public void prepare() {
-		Log.v(TAG, "Preparing files for upload.");
-		updateUploaderFiles();
-	}
-
-	@Override
-	public long bytesAvailable() {
-		if (hasNext() == false) {
-			return 0L;
-		} else {
-			return state.bytesAvailable;
-		}
-	}
-	
-	@Override
-	public UploaderFileDescription next() {
-		synchronized (LogcatTask.this) {
-			try {
-				setCurrentFile(uploaderFiles.get(0));
-			} catch (Exception e) {
-				clearCurrentFile();
-				return null;	
-			}
-			
-			Log.v(TAG, "Uploading " + currentFile.getName());
-			
-			UploaderFileDescription uploadFile;
-			try {
-				uploadFile = new UploaderFileDescription(currentFile.getAbsolutePath(), LogcatProcess.LOG_FILENAME, LogcatTask.this.getClass().getName());
-				return uploadFile;
-			} catch (Exception e) {
-				Log.e(TAG, "Exception when gathering upload file list: " + e);
-				updateUploaderFiles();
-				clearCurrentFile();
-				return null;
-			}
-		}
-	}
 
+	/*
+	 * Queued files are never renamed, so one that changed under the upload is queued once
+	 * more with its current contents instead of being deleted. After a restart the journal
+	 * replays uploads before the first check has rebuilt queuedFiles, so a successful
+	 * completion for an unknown file under logRoot is taken as done; otherwise the scan would
+	 * queue it again.
+	 */
 	@Override
 	public void complete(UploaderFileDescription uploaderFileDescription, boolean success) {
 		synchronized (LogcatTask.this) {
+			File completedFile = new File(uploaderFileDescription.src);
+			QueuedFile queuedFile = queuedFiles.get(completedFile);
+			if (queuedFile == null) {
+				if (success == true && isLogFile(completedFile) && pendingCompactions.contains(completedFile) == false) {
+					Log.v(TAG, "Uploading replayed " + completedFile.getName() + " succeeded.");
+					deleteUploaded(completedFile);
+				} else {
+					Log.e(TAG, "Completion for unknown file " + uploaderFileDescription.src);
+				}
+				return;
+			}
 			if (success == true) {
-				Log.v(TAG, "Uploading " + currentFile.getName() + " succeeded.");
+				Log.v(TAG, "Uploading " + completedFile.getName() + " succeeded.");
+				forget(completedFile);
 				
-				if (checkCurrentFile() == false) {
-					Log.w(TAG, "Did not pass hash " + currentFile.getName());
-					clearCurrentFile();
-					updateUploaderFiles();
+				if (queuedFile.check() == false) {
+					Log.w(TAG, "Did not pass hash " + completedFile.getName());
+					queue(completedFile);
 					return;
 				}
-				if (currentFile.delete() != true) {
-					Log.e(TAG, "Unable to delete " + currentFile.getName());
-				} else {
-					Log.v(TAG, "Deleted " + currentFile.getName());
-				}
-				if (uploaderFiles.remove(currentFile) != true) {
-					Log.e(TAG, "Unable to remove " + currentFile.getName());
-				}
+				deleteUploaded(completedFile);
+			} else if (completedFile.exists() == false) {
+				forget(completedFile);
 			} else {
-				Log.v(TAG, "Uploading " + currentFile.getName() + " failed.");
+				Log.v(TAG, "Uploading " + completedFile.getName() + " failed.");
 			}
-			clearCurrentFile();
 		}
 	}
 	
-	@Override
-	public String getState() {
-		updateUploaderFiles();
-		return super.getState();
+	private synchronized void deleteUploaded(File completedFile) {
+		if (completedFile.delete() != true) {
+			Log.e(TAG, "Unable to delete " + completedFile.getName());
+		} else {
+			Log.v(TAG, "Deleted " + completedFile.getName());
+		}
+		LogcatSegment.metaFile(completedFile).delete();
+		destroyIfDrained(completedFile.getParentFile());
+	}
+	
+	private boolean isLogFile(File file) {
+		File logcatDir = file.getParentFile();
+		return logcatDir != null && logRoot.equals(logcatDir.getParentFile());
 	}
 	
 	@Override
@@ -357,6 +597,15 @@ class LogcatParameters extends PeriodicParameters {
 	@Element(required=false)
 	public Integer uploadFileCount;
 	
+	@Element(required=false)
+	public Boolean streaming;
+	
+	@Element(required=false)
+	public Integer segmentAgeSec;
+	
+	@Element(required=false)
+	public Boolean compress;
+	
 	public LogcatParameters() {
 		super();
 		PID = null;
@@ -365,6 +614,9 @@ class LogcatParameters extends PeriodicParameters {
 		fileSize = 100;
 		fileCount = 1024;
 		uploadFileCount = 2048;
+		streaming = false;
+		segmentAgeSec = 600;
+		compress = false;
 		tags = new HashSet<Tag>();
 		tags.add(new Tag("*", "V"));
 	}
@@ -377,6 +629,54 @@ class LogcatParameters extends PeriodicParameters {
 		this.fileSize = parameters.fileSize;
 		this.fileCount = parameters.fileCount;
 		this.uploadFileCount = parameters.uploadFileCount;
+		this.streaming = parameters.streaming;
+		this.segmentAgeSec = parameters.segmentAgeSec;
+		this.compress = parameters.compress;
+	}
+	
+	@Override
+	public void writeFields(DataOutput out) throws IOException {
+		super.writeFields(out);
+		ParameterStore.writeInteger(out, PID);
+		ParameterStore.writeDate(out, started);
+		ParameterStore.writeString(out, format);
+		out.writeInt(tags.size());
+		for (Tag tag : tags) {
+			ParameterStore.writeString(out, tag.name);
+			ParameterStore.writeString(out, tag.level);
+		}
+		ParameterStore.writeInteger(out, fileSize);
+		ParameterStore.writeInteger(out, fileCount);
+		ParameterStore.writeInteger(out, uploadFileCount);
+		ParameterStore.writeBoolean(out, streaming);
+		ParameterStore.writeInteger(out, segmentAgeSec);
+		ParameterStore.writeBoolean(out, compress);
+	}
+	
+	@Override
+	public void readFields(DataInput in, int version) throws IOException {
+		super.readFields(in, version);
+		PID = ParameterStore.readInteger(in);
+		started = ParameterStore.readDate(in);
+		format = ParameterStore.readString(in);
+		tags = new HashSet<Tag>();
+		for (int count = in.readInt(); count > 0; count--) {
+			tags.add(new Tag(ParameterStore.readString(in), ParameterStore.readString(in)));
+		}
+		fileSize = ParameterStore.readInteger(in);
+		fileCount = ParameterStore.readInteger(in);
+		uploadFileCount = ParameterStore.readInteger(in);
+		streaming = ParameterStore.readBoolean(in);
+		segmentAgeSec = ParameterStore.readInteger(in);
+		compress = ParameterStore.readBoolean(in);
+	}
+	
+	public boolean isStreaming() {
+		return (streaming != null && streaming == true);
+	}
+	
+	public boolean isCompressing() {
+		return (compress != null && compress == true);
 	}
 	
 	public String toLogcatCommand(File logcatFile) {
@@ -385,9 +685,14 @@ class LogcatParameters extends PeriodicParameters {
 		
 		formatter.format("logcat ");
 		formatter.format("-v %s ", format);
-		formatter.format("-r %d ", fileSize);
-		formatter.format("-n %d ", fileCount);
-		formatter.format("-f %s ", logcatFile.getAbsolutePath());
+		
+		// Streaming processes write to stdout and we handle rotation ourselves.
+		
+		if (isStreaming() == false) {
+			formatter.format("-r %d ", fileSize);
+			formatter.format("-n %d ", fileCount);
+			formatter.format("-f %s ", logcatFile.getAbsolutePath());
+		}
 		
 		formatter.format("*:S ");
 		for (Tag tag : tags) {
@@ -403,7 +708,8 @@ class LogcatParameters extends PeriodicParameters {
 		return "LogcatParameters [PID=" + PID + ", started=" + started
 				+ ", format=" + format + ", tags=" + tags + ", fileSize="
 				+ fileSize + ", fileCount=" + fileCount + ", uploadFileCount="
-				+ uploadFileCount + "]";
+				+ uploadFileCount + ", streaming=" + streaming
+				+ ", segmentAgeSec=" + segmentAgeSec + ", compress=" + compress + "]";
 	}
 	@Override
 	public int hashCode() {
@@ -419,6 +725,12 @@ class LogcatParameters extends PeriodicParameters {
 		result = prime * result + ((tags == null) ? 0 : tags.hashCode());
 		result = prime * result
 				+ ((uploadFileCount == null) ? 0 : uploadFileCount.hashCode());
+		result = prime * result
+				+ ((streaming == null) ? 0 : streaming.hashCode());
+		result = prime * result
+				+ ((segmentAgeSec == null) ? 0 : segmentAgeSec.hashCode());
+		result = prime * result
+				+ ((compress == null) ? 0 : compress.hashCode());
 		return result;
 	}
 	@Override
@@ -465,6 +777,21 @@ class LogcatParameters extends PeriodicParameters {
 				return false;
 		} else if (!uploadFileCount.equals(other.uploadFileCount))
 			return false;
+		if (streaming == null) {
+			if (other.streaming != null)
+				return false;
+		} else if (!streaming.equals(other.streaming))
+			return false;
+		if (segmentAgeSec == null) {
+			if (other.segmentAgeSec != null)
+				return false;
+		} else if (!segmentAgeSec.equals(other.segmentAgeSec))
+			return false;
+		if (compress == null) {
+			if (other.compress != null)
+				return false;
+		} else if (!compress.equals(other.compress))
+			return false;
 		return true;
 	}
 }
@@ -535,16 +862,94 @@ class LogcatState extends PeriodicState {
 	@Element
 	public Long bytesAvailable;
 	
+	@Element
+	public Long rawBytes;
+	
+	@Element
+	public Long compressedBytes;
+	
 	public LogcatState() {
 		super();
 		bytesAvailable = 0L;
+		rawBytes = 0L;
+		compressedBytes = 0L;
+	}
+}
+
+@Root(name="LogcatSegment")
+class LogcatSegment {
+	
+	public static final String HASH_ALGORITHM = Util.HASH_ALGORITHM;
+	public static final String COMPRESSED_SUFFIX = ".gz";
+	public static final String TEMPORARY_SUFFIX = ".tmp";
+	public static final String META_SUFFIX = ".meta";
+	
+	@Element
+	public Long rawLength;
+	
+	@Element
+	public Long length;
+	
+	@Element(required=false)
+	public String encoding;
+	
+	@Element(required=false)
+	public String hash;
+	
+	@Element(required=false)
+	public Long modified;
+	
+	public LogcatSegment() {
+		super();
+	}
+	
+	public LogcatSegment(long rawLength, String encoding, String hash, File segment) {
+		super();
+		this.rawLength = rawLength;
+		this.length = segment.length();
+		this.encoding = encoding;
+		this.hash = hash;
+		this.modified = segment.lastModified();
+	}
+	
+	public boolean matches(File segment) {
+		return (hash != null && modified != null &&
+				length == segment.length() && modified == segment.lastModified());
+	}
+	
+	public static File metaFile(File segment) {
+		return new File(segment.getPath() + META_SUFFIX);
 	}
+	
+	public static LogcatSegment read(File segment) {
+		File metaFile = metaFile(segment);
+		if (metaFile.exists() == false) {
+			return null;
+		}
+		try {
+			return Serialization.read(LogcatSegment.class, metaFile);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	public void write(File segment) throws Exception {
+		Serialization.write(this, metaFile(segment));
+	}
+}
+
+interface LogcatSegmentListener {
+	public void segmentSealed(LogcatProcess logcatProcess, File segment);
+	public void segmentDropped(LogcatProcess logcatProcess, File segment);
 }
 
 class LogcatProcess implements Comparable<LogcatProcess> {
 	
 	public static final String LOG_FILENAME = "log.out";
 	private static final String PARAMETER_FILENAME = "parameters.xml";
+	private static final String ACTIVE_FILENAME = "active.out";
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int SEQUENCE_DIGITS = 10;
 	
 	public String logcatCommand;
 		
@@ -553,15 +958,29 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 	public File logcatDir;
 	public File logFile;	
 	public File pidFile;
+	public File activeFile;
+	
+	private Process process;
+	private Thread readerThread;
+	private boolean stopping;
+	private LogcatSegmentListener segmentListener;
+	
+	private OutputStream segmentStream;
+	private MessageDigest segmentDigester;
+	private long segmentBytes;
+	private long segmentStarted;
+	private long segmentSequence;
+	private ArrayList<File> droppedSegments = new ArrayList<File>();
 	
 	public LogcatProcess(String logcatDir) throws Exception {
 		super();
 		this.logcatDir = new File(logcatDir);
 		pidFile = new File(logcatDir + "/" + PARAMETER_FILENAME);
 		logFile = new File(logcatDir + "/" + LOG_FILENAME);
-		Serializer serializer = new Persister();
-		this.parameters = serializer.read(LogcatParameters.class, pidFile);
+		activeFile = new File(logcatDir + "/" + ACTIVE_FILENAME);
+		this.parameters = Serialization.read(LogcatParameters.class, pidFile);
 		this.logcatCommand = parameters.toLogcatCommand(logFile);
+		this.segmentSequence = lastSequence() + 1;
 	}
 	
 	public LogcatProcess(File logRoot, LogcatParameters parameters) {
@@ -570,8 +989,14 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 		logcatDir.mkdir();
 		pidFile = new File(logcatDir + "/" + PARAMETER_FILENAME);
 		logFile = new File(this.logcatDir + "/" + LOG_FILENAME);
+		activeFile = new File(this.logcatDir + "/" + ACTIVE_FILENAME);
 		this.parameters = parameters;
 		this.logcatCommand = parameters.toLogcatCommand(logFile);
+		this.segmentSequence = 0L;
+	}
+	
+	public void setSegmentListener(LogcatSegmentListener segmentListener) {
+		this.segmentListener = segmentListener;
 	}
 	
 	public void start() throws Exception {
@@ -597,8 +1022,7 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 		}
 		
 		try {
-			Serializer serializer = new Persister();
-			serializer.write(this.parameters, this.pidFile);
+			Serialization.write(this.parameters, this.pidFile);
 		} catch (Exception e) {
 			this.pidFile.delete();
 			this.parameters.PID = null;
@@ -607,6 +1031,15 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 			} catch (Exception e1) { }
 			throw(e);
 		}
+		
+		if (this.parameters.isStreaming()) {
+			synchronized (this) {
+				this.process = logcatProcess;
+				this.stopping = false;
+				this.readerThread = new Thread(new Reader(logcatProcess.getInputStream()), "LogcatReader-" + this.parameters.PID);
+				this.readerThread.start();
+			}
+		}
 		Log.v("PhoneLabServices-LogcatTask", "Started logcat process " + this.parameters.PID + " successfully: " + this.logcatCommand);
 	}
 	
@@ -614,10 +1047,50 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 		if (this.parameters.PID == null) {
 			return;
 		}
+		if (this.parameters.isStreaming()) {
+			File sealed;
+			synchronized (this) {
+				stopping = true;
+				if (process != null) {
+					process.destroy();
+					process = null;
+				}
+				sealed = sealSegment();
+			}
+			notifySealed(sealed);
+		}
 		android.os.Process.killProcess(this.parameters.PID);
 		Log.v("PhoneLabServices-LogcatTask", "Stopped logcat process " + this.parameters.PID + " successfully.");
 	}
 	
+	/*
+	 * Streaming processes only live as long as the reader that drains them. After a restart
+	 * this kills any orphaned logcat left behind and seals the partially written segment so
+	 * that it is uploaded rather than lost.
+	 */
+	public void recover() {
+		if (this.parameters.isStreaming() == false) {
+			return;
+		}
+		if (this.parameters.PID != null) {
+			try {
+				BufferedReader cmdlineReader = new BufferedReader(new FileReader(new File("/proc/" + this.parameters.PID + "/cmdline")));
+				String cmdline = cmdlineReader.readLine();
+				cmdlineReader.close();
+				if (cmdline != null && cmdline.startsWith("logcat")) {
+					android.os.Process.killProcess(this.parameters.PID);
+					Log.v("PhoneLabServices-LogcatTask", "Killed orphaned logcat process " + this.parameters.PID);
+				}
+			} catch (Exception e) { }
+		}
+		File sealed;
+		synchronized (this) {
+			stopping = true;
+			sealed = sealSegment();
+		}
+		notifySealed(sealed);
+	}
+	
 	public void destroy() throws Exception {
 		if (this.pidFile.delete() == false) {
 			throw new Exception("Unable to delete PID file");
@@ -638,6 +1111,12 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 			return false;
 		}
 		
+		if (this.parameters.isStreaming()) {
+			synchronized (this) {
+				return (readerThread != null && readerThread.isAlive() && stopping == false);
+			}
+		}
+		
 		String processCommandLine = null;
 		try {
 			processCommandLine = new BufferedReader(new FileReader(new File("/proc/" + this.parameters.PID + "/cmdline"))).readLine();
@@ -652,10 +1131,264 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 		}
 	}
 	
+	private class Reader implements Runnable {
+		private InputStream inputStream;
+		
+		public Reader(InputStream inputStream) {
+			this.inputStream = inputStream;
+		}
+		
+		@Override
+		public void run() {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int count;
+			try {
+				while ((count = inputStream.read(buffer)) > 0) {
+					notifySealed(append(buffer, count));
+				}
+			} catch (IOException e) {
+				Log.w("PhoneLabServices-LogcatTask", "Logcat reader for " + LogcatProcess.this.parameters.PID + " stopped: " + e);
+			} finally {
+				try {
+					inputStream.close();
+				} catch (IOException e) { }
+				File sealed;
+				synchronized (LogcatProcess.this) {
+					sealed = sealSegment();
+				}
+				notifySealed(sealed);
+			}
+		}
+	}
+	
+	private static int lastNewline(byte[] buffer, int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (buffer[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean segmentDue(long pendingBytes) {
+		if (segmentBytes + pendingBytes >= parameters.fileSize * 1024L) {
+			return true;
+		}
+		return (parameters.segmentAgeSec != null &&
+				System.currentTimeMillis() - segmentStarted >= parameters.segmentAgeSec * 1000L);
+	}
+	
+	/*
+	 * Segments are only ever cut at line boundaries, so a read that crosses the size or age
+	 * limit is split after its last newline and the remainder starts the next segment.
+	 */
+	private synchronized File append(byte[] buffer, int count) throws IOException {
+		if (stopping == true) {
+			return null;
+		}
+		if (segmentStream == null) {
+			openSegment();
+		}
+		int newline = lastNewline(buffer, count);
+		if (newline < 0 || segmentDue(count) == false) {
+			segmentStream.write(buffer, 0, count);
+			segmentBytes += count;
+			return null;
+		}
+		segmentStream.write(buffer, 0, newline + 1);
+		segmentBytes += newline + 1;
+		File sealed = sealSegment();
+		if (newline + 1 < count) {
+			openSegment();
+			segmentStream.write(buffer, newline + 1, count - (newline + 1));
+			segmentBytes += count - (newline + 1);
+		}
+		return sealed;
+	}
+	
+	private void openSegment() throws IOException {
+		segmentBytes = activeFile.length();
+		segmentStarted = System.currentTimeMillis();
+		segmentStream = new BufferedOutputStream(new FileOutputStream(activeFile, true));
+		
+		// Appending to a leftover active file means we never saw its first bytes.
+		
+		segmentDigester = null;
+		if (segmentBytes == 0) {
+			try {
+				segmentDigester = MessageDigest.getInstance(LogcatSegment.HASH_ALGORITHM);
+				segmentStream = new DigestOutputStream(segmentStream, segmentDigester);
+			} catch (NoSuchAlgorithmException e) { }
+		}
+	}
+	
+	private File sealSegment() {
+		if (segmentStream != null) {
+			try {
+				segmentStream.close();
+			} catch (IOException e) {
+				Log.e("PhoneLabServices-LogcatTask", "Unable to close segment " + activeFile + ": " + e);
+			}
+			segmentStream = null;
+		}
+		if (activeFile.exists() == false || activeFile.length() == 0) {
+			return null;
+		}
+		File sealed = nextSegmentFile();
+		if (activeFile.renameTo(sealed) == false) {
+			Log.e("PhoneLabServices-LogcatTask", "Unable to seal segment " + sealed);
+			return null;
+		}
+		if (segmentDigester != null) {
+			try {
+				new LogcatSegment(sealed.length(), null, Util.digestToString(segmentDigester.digest()), sealed).write(sealed);
+			} catch (Exception e) {
+				Log.w("PhoneLabServices-LogcatTask", "Unable to record hash for " + sealed + ": " + e);
+			}
+			segmentDigester = null;
+		}
+		segmentSequence++;
+		segmentBytes = 0;
+		pruneSegments();
+		return sealed;
+	}
+	
+	/*
+	 * Without streaming logcat -f renames log.out.N to N+1 on every rotation, so the files
+	 * it has rotated out are moved to sealed segment names it never touches before they are
+	 * queued. Whichever rename comes first wins, and a file logcat moved first is claimed
+	 * under its new name on a later pass. Claimed files count against the same byte budget
+	 * as streaming segments.
+	 */
+	public ArrayList<File> claimRotated() throws Exception {
+		ArrayList<File> claimed = new ArrayList<File>();
+		synchronized (this) {
+			boolean running = isRunning();
+			for (File file : getLogFiles()) {
+				if (sequenceOf(file.getName()) >= 0 || (running == true && file.equals(logFile))) {
+					continue;
+				}
+				File sealed = nextSegmentFile();
+				if (file.renameTo(sealed) == true) {
+					segmentSequence++;
+				}
+			}
+			pruneSegments();
+			for (File file : getLogFiles()) {
+				if (sequenceOf(file.getName()) >= 0) {
+					claimed.add(file);
+				}
+			}
+		}
+		notifySealed(null);
+		return claimed;
+	}
+	
+	public void sealExpired() {
+		if (this.parameters.isStreaming() == false) {
+			return;
+		}
+		File sealed = null;
+		synchronized (this) {
+			if (segmentStream != null && segmentDue(0)) {
+				sealed = sealSegment();
+			}
+		}
+		notifySealed(sealed);
+	}
+	
+	/* listeners are called without holding this, pruned segments are reported first */
+	private void notifySealed(File sealed) {
+		ArrayList<File> dropped;
+		synchronized (this) {
+			dropped = droppedSegments;
+			droppedSegments = new ArrayList<File>();
+		}
+		if (segmentListener == null) {
+			return;
+		}
+		for (File segment : dropped) {
+			segmentListener.segmentDropped(this, segment);
+		}
+		if (sealed != null) {
+			segmentListener.segmentSealed(this, sealed);
+		}
+	}
+	
+	/*
+	 * fileSize x fileCount is treated as an on-disk byte budget, so compressed segments
+	 * let the same space hold correspondingly more history.
+	 */
+	private void pruneSegments() {
+		ArrayList<File> segments;
+		try {
+			segments = getLogFiles();
+		} catch (Exception e) {
+			return;
+		}
+		long budget = parameters.fileSize * 1024L * parameters.fileCount;
+		long total = 0L;
+		for (File segment : segments) {
+			total += segment.length();
+		}
+		for (int i = 0; i < segments.size() && total > budget; i++) {
+			Log.v("PhoneLabServices-LogcatTask", "Pruning segment " + segments.get(i));
+			total -= segments.get(i).length();
+			segments.get(i).delete();
+			LogcatSegment.metaFile(segments.get(i)).delete();
+			droppedSegments.add(segments.get(i));
+		}
+	}
+	
+	/*
+	 * The sequence number of a sealed segment, compressed or not, otherwise -1. The digits
+	 * are zero padded, which tells sealed segments apart from the log.out.N files logcat
+	 * rotates itself.
+	 */
+	static long sequenceOf(String name) {
+		if (name.endsWith(LogcatSegment.COMPRESSED_SUFFIX)) {
+			name = name.substring(0, name.length() - LogcatSegment.COMPRESSED_SUFFIX.length());
+		}
+		if (name.startsWith(LOG_FILENAME + ".") == false ||
+				name.length() != LOG_FILENAME.length() + 1 + SEQUENCE_DIGITS) {
+			return -1L;
+		}
+		try {
+			return Long.parseLong(name.substring(LOG_FILENAME.length() + 1));
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+	
+	private long lastSequence() {
+		long last = -1L;
+		String[] names = logcatDir.list();
+		if (names == null) {
+			return last;
+		}
+		for (String name : names) {
+			last = Math.max(last, sequenceOf(name));
+		}
+		return last;
+	}
+	
+	/* never the name of a segment still on disk, compressed or not */
+	private File nextSegmentFile() {
+		while (true) {
+			File segment = new File(logcatDir, String.format(Locale.US, "%s.%010d", LOG_FILENAME, segmentSequence));
+			if (segment.exists() == false && new File(segment.getPath() + LogcatSegment.COMPRESSED_SUFFIX).exists() == false) {
+				return segment;
+			}
+			segmentSequence = Math.max(segmentSequence + 1, lastSequence() + 1);
+		}
+	}
+	
 	private FileFilter logcatFileFilter = new FileFilter() {
 		public boolean accept(File pathname) {
 			String filename = pathname.getName();
-			if (filename.startsWith(LogcatProcess.LOG_FILENAME) == true) {
+			if (filename.startsWith(LogcatProcess.LOG_FILENAME) == true &&
+				filename.endsWith(LogcatSegment.TEMPORARY_SUFFIX) == false &&
+				filename.endsWith(LogcatSegment.META_SUFFIX) == false) {
 				return true;
 			} else {
 				return false;
@@ -680,6 +1413,14 @@ class LogcatProcess implements Comparable<LogcatProcess> {
 			return logcatFiles;
 		}
 		
+		// Sealed segments carry a zero-padded sequence number and the active segment is
+		// never listed, so streaming directories sort by name and need no trimming.
+		
+		if (this.parameters.isStreaming()) {
+			Collections.sort(logcatFiles);
+			return logcatFiles;
+		}
+		
 		Collections.sort(logcatFiles, new Comparator<File>() {
 			@Override
 			public int compare(File f1, File f2) {
@@ -2,45 +2,55 @@ package edu.buffalo.cse.phonelab.harness.lib.tasks;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.ElementMap;
 import org.simpleframework.xml.Root;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Xml;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.ManifestClient;
+import edu.buffalo.cse.phonelab.harness.lib.metrics.Histogram;
+import edu.buffalo.cse.phonelab.harness.lib.periodictask.ParameterStore;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicParameters;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicState;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicTask;
@@ -54,20 +64,27 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
 	
 	private int fallbackManifestCount;
 	
+	/* collection runs without the monitor, so receivers may call back into this task */
 	@Override
-	protected synchronized void check(ManifestParameters parameters) {
+	protected void check(ManifestParameters parameters) {
 		try {
 			Log.v(TAG, "Collecting manifest.");
+			long started = SystemClock.elapsedRealtime();
 			collectState(parameters);
+			metrics.histogram("collectMS", Histogram.LATENCY_MS).record(SystemClock.elapsedRealtime() - started);
 			Log.v(TAG, "Downloading manifest.");
+			started = SystemClock.elapsedRealtime();
 			boolean newManifest = exchangeManifest(parameters.manifestURL, parameters);
 			if (fallbackManifestCount > BACKUP_MANIFEST_THRESHOLD) {
 				Log.w(TAG, "Using backup manifest URL due to failure count");
 				newManifest = exchangeManifest(BACKUP_MANIFEST_URL, parameters);
 			}
+			metrics.histogram("fetchMS", Histogram.LATENCY_MS).record(SystemClock.elapsedRealtime() - started);
 			if (newManifest == true || parameters.compareFiles == false) {
 				Log.v(TAG, "Distributing manifest.");
+				started = SystemClock.elapsedRealtime();
 				distributeManifest(newManifest, parameters);
+				metrics.histogram("distributeMS", Histogram.LATENCY_MS).record(SystemClock.elapsedRealtime() - started);
 			}
 		} catch (Exception e) {
 			Log.e(TAG, "Downloading and distributing the manifest failed: " + e);
@@ -76,11 +93,15 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
 	
 	private File serverManifestFile;
 	private String serverManifestHash;
+	private File serverManifestTagFile;
+	private String serverManifestTag;
 	private File clientManifestFile;
 	private File newManifestFile;
-	private DocumentBuilderFactory manifestBuilderFactory;
-	private DocumentBuilder manifestBuilder;
-	private Document manifestDocument;
+	private HashMap<String, String> acknowledgedStates;
+	private HashMap<String, String> pendingStates;
+	private boolean pendingFullState;
+	private int deltaStatesSinceFull;
+	private HashMap<String, ManifestFragment> manifestFragments;
 	PendingIntent pendingAlarmIntent;
 		
 	public ManifestTask(Context context) throws Exception {
@@ -90,71 +111,327 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
 		serverManifestFile = new File(manifestDir, "server.xml");
 		clientManifestFile = new File(manifestDir, "client.xml");
 		newManifestFile = new File(manifestDir, "new.xml");
+		serverManifestTagFile = new File(manifestDir, "server.etag");
 		fallbackManifestCount = 0;
+		acknowledgedStates = new HashMap<String, String>();
+		pendingStates = null;
+		deltaStatesSinceFull = 0;
+		lastGoodStates = new HashMap<String, String>();
+		stuckCollections = new HashMap<String, Collection>();
+		collectionExecutor = new ThreadPoolExecutor(COLLECTION_THREADS, COLLECTION_THREADS,
+				COLLECTION_KEEP_ALIVE_SEC, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(COLLECTION_QUEUE_LIMIT));
+		collectionExecutor.allowCoreThreadTimeOut(true);
 		
 		if (serverManifestFile.exists()) {
 			try {
-				serverManifestHash = Util.hashFile(serverManifestFile);
+				serverManifestHash = Util.checksumFile(serverManifestFile);
 			} catch (Exception e) {
 				Log.e(TAG, "Failed to start." + e);
 				throw(e);
 			}
+			serverManifestTag = readManifestTag();
 		} else {
 			serverManifestHash = "";
+			serverManifestTag = "";
 		}
+	}
 	
-		manifestBuilderFactory = DocumentBuilderFactory.newInstance();
-		try {
-			manifestBuilder = manifestBuilderFactory.newDocumentBuilder();	
-		} catch (Exception e) {
-			Log.e(TAG, "Failed to start." + e);
-			throw(e);
+	private static final int COLLECTION_THREADS = 4;
+	private static final long COLLECTION_KEEP_ALIVE_SEC = 60L;
+	private static final int COLLECTION_QUEUE_LIMIT = 64;
+	
+	private final ThreadPoolExecutor collectionExecutor;
+	private final HashMap<String, String> lastGoodStates;
+	/* timed out collections whose getState() has not returned yet, each holding a pool thread */
+	private final HashMap<String, Collection> stuckCollections;
+	
+	private class Collection implements Callable<Collection> {
+		final String name;
+		final ManifestClient receiver;
+		volatile long started;
+		volatile boolean finished;
+		boolean abandoned;
+		String collected;
+		
+		public Collection(String name, ManifestClient receiver) {
+			this.name = name;
+			this.receiver = receiver;
+			this.started = 0L;
+		}
+		
+		@Override
+		public Collection call() throws Exception {
+			synchronized (this) {
+				if (abandoned == true) {
+					return this;
+				}
+				started = SystemClock.elapsedRealtime();
+			}
+			try {
+				collected = receiver.getState();
+			} finally {
+				finished = true;
+			}
+			return this;
+		}
+		
+		/* cancelling cannot interrupt a blocked getState(), so whether it still holds a thread */
+		public synchronized boolean abandon() {
+			abandoned = true;
+			return started > 0L && finished == false;
 		}
 	}
 	
-	private synchronized boolean collectState(ManifestParameters parameters) {
-        if (state.receivers.isEmpty()) {
-            Log.w(TAG, "Trying to collect states, while has no receivers yet");
-            if (clientManifestFile.length() > 0) {
-                Log.v(TAG, "Found staled state file, deleting it...");
-                try {
-                    clientManifestFile.delete();
-                } catch (Exception e) {
-                    Log.w(TAG, "Error deleting state file " + e);
-                }
-            }
-            return true;
-        }
+	/*
+	 * Receivers are asked for their state on a small pool and each answer is written to
+	 * client.xml as soon as it arrives. A receiver that takes longer than
+	 * collectTimeoutSec once started is cancelled and its last good state is sent in its
+	 * place; receivers still queued behind slow ones give up once every pool thread could
+	 * have used its full timeout on them. A receiver whose last timed out collection is
+	 * still blocked is not asked again until it returns, and gets the same treatment.
+	 */
+	private boolean collectState(ManifestParameters parameters) {
+		HashMap<String, ManifestClient> receivers = new HashMap<String, ManifestClient>();
+		HashMap<String, String> acknowledged;
+		boolean fullState;
+		synchronized (this) {
+			if (state.receivers.isEmpty()) {
+				Log.w(TAG, "Trying to collect states, while has no receivers yet");
+				if (clientManifestFile.length() > 0) {
+					Log.v(TAG, "Found staled state file, deleting it...");
+					try {
+						clientManifestFile.delete();
+					} catch (Exception e) {
+						Log.w(TAG, "Error deleting state file " + e);
+					}
+				}
+				pendingStates = null;
+				return true;
+			}
+			for (HashMap.Entry<String, ManifestReceiver> entry : state.receivers.entrySet()) {
+				receivers.put(entry.getKey(), entry.getValue().receiver);
+			}
+			
+			/* receivers whose stable state matches what the server last acknowledged are left out of a delta */
+			fullState = (acknowledgedStates.isEmpty() ||
+					deltaStatesSinceFull + 1 >= parameters.getFullStateInterval());
+			acknowledged = new HashMap<String, String>(acknowledgedStates);
+		}
+		
+		int freeThreads;
+		synchronized (this) {
+			Iterator<Collection> stuck = stuckCollections.values().iterator();
+			while (stuck.hasNext()) {
+				if (stuck.next().finished == true) {
+					stuck.remove();
+				}
+			}
+			freeThreads = Math.max(1, COLLECTION_THREADS - stuckCollections.size());
+		}
+		
+		long timeoutMS = parameters.getCollectTimeoutMS();
+		long submitted = SystemClock.elapsedRealtime();
+		long stageDeadline = submitted + timeoutMS * ((receivers.size() + freeThreads - 1) / freeThreads);
+		CompletionService<Collection> completion = new ExecutorCompletionService<Collection>(collectionExecutor);
+		HashMap<Future<Collection>, Collection> running = new HashMap<Future<Collection>, Collection>();
+		ArrayList<String> skipped = new ArrayList<String>();
+		for (HashMap.Entry<String, ManifestClient> entry : receivers.entrySet()) {
+			synchronized (this) {
+				if (stuckCollections.containsKey(entry.getKey())) {
+					Log.w(TAG, "Previous collection from " + entry.getKey() + " is still running. Skipping it.");
+					skipped.add(entry.getKey());
+					continue;
+				}
+			}
+			Log.v(TAG, "Collecting state from " + entry.getKey());
+			Collection collection = new Collection(entry.getKey(), entry.getValue());
+			try {
+				running.put(completion.submit(collection), collection);
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "Collection queue full. Skipping " + entry.getKey());
+				skipped.add(entry.getKey());
+			}
+		}
+		metrics.counter("collectSkipped").add(skipped.size());
+		
+		HashMap<String, String> collectedStates = new HashMap<String, String>();
+		HashMap<String, String> freshStates = new HashMap<String, String>();
 		try {
 			BufferedWriter clientManifestWriter = new BufferedWriter(new FileWriter(clientManifestFile));
-			clientManifestWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>");
-			
-			for (HashMap.Entry<String, ManifestReceiver> entry : state.receivers.entrySet()) {
-				
-				String manifestReceiverName = entry.getKey();
-				ManifestReceiver manifestReceiver = entry.getValue();
-				
-				try {
-					Log.v(TAG, "Collecting state from " + manifestReceiverName);
-					String localReceiverUpdate = manifestReceiver.receiver.getState();
-					if ((localReceiverUpdate != null) &&
-						(localReceiverUpdate.equals("") == false)) {
-						clientManifestWriter.write(localReceiverUpdate + "\n");
+			try {
+				clientManifestWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root mode=\"" + (fullState ? "full" : "delta") + "\">");
+				for (String name : skipped) {
+					writeLastGood(clientManifestWriter, name, "busy", fullState, acknowledged, collectedStates);
+				}
+				while (running.isEmpty() == false) {
+					Future<Collection> done;
+					if (timeoutMS <= 0L) {
+						done = completion.take();
 					} else {
-						Log.w(TAG, manifestReceiverName + " returned no state.");
+						long now = SystemClock.elapsedRealtime();
+						long wait = stageDeadline - now;
+						for (Collection collection : running.values()) {
+							if (collection.started > 0L) {
+								wait = Math.min(wait, collection.started + timeoutMS - now);
+							}
+						}
+						done = completion.poll(Math.max(wait, 0L), TimeUnit.MILLISECONDS);
+					}
+					if (done != null) {
+						Collection collection = running.remove(done);
+						if (collection == null) {
+							continue;
+						}
+						try {
+							String localReceiverUpdate = done.get().collected;
+							if ((localReceiverUpdate != null) &&
+								(localReceiverUpdate.equals("") == false)) {
+								freshStates.put(collection.name, localReceiverUpdate);
+								writeState(clientManifestWriter, collection.name, localReceiverUpdate, fullState, acknowledged, collectedStates);
+							} else {
+								Log.w(TAG, collection.name + " returned no state.");
+								writeUnavailable(clientManifestWriter, collection.name, "empty");
+							}
+						} catch (ExecutionException e) {
+							Log.e(TAG, "Problem collecting state from " + collection.name + ": " + e.getCause());
+							writeUnavailable(clientManifestWriter, collection.name, "error");
+						}
+						continue;
+					}
+					long now = SystemClock.elapsedRealtime();
+					Iterator<HashMap.Entry<Future<Collection>, Collection>> iterator = running.entrySet().iterator();
+					while (iterator.hasNext()) {
+						HashMap.Entry<Future<Collection>, Collection> entry = iterator.next();
+						Collection collection = entry.getValue();
+						if ((collection.started > 0L && now - collection.started >= timeoutMS) || now >= stageDeadline) {
+							entry.getKey().cancel(true);
+							iterator.remove();
+							if (collection.abandon() == true) {
+								synchronized (this) {
+									stuckCollections.put(collection.name, collection);
+								}
+							}
+							metrics.counter("collectTimeouts").increment();
+							Log.w(TAG, "Timed out collecting state from " + collection.name + ".");
+							writeLastGood(clientManifestWriter, collection.name, "timeout", fullState, acknowledged, collectedStates);
+						}
 					}
-				} catch (Exception e) {
-					Log.e(TAG, "Problem collecting state from " + manifestReceiverName + ": " + e);
-					continue;
 				}
+				clientManifestWriter.write("</root>");
+			} finally {
+				clientManifestWriter.close();
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to collect state: " + e);
+			for (Future<Collection> future : running.keySet()) {
+				future.cancel(true);
+			}
+			synchronized (this) {
+				pendingStates = null;
 			}
-			clientManifestWriter.write("</root>");
-			clientManifestWriter.close();
-			state.stateCollected = new Date();
-			return true;
-		} catch (IOException e) {
 			return false;
 		}
+		synchronized (this) {
+			lastGoodStates.putAll(freshStates);
+			lastGoodStates.keySet().retainAll(state.receivers.keySet());
+			pendingStates = collectedStates;
+			pendingFullState = fullState;
+			state.stateCollected = new Date();
+		}
+		return true;
+	}
+	
+	/* acknowledged and collected states hold stableDigest()s rather than the states themselves */
+	private static void writeState(BufferedWriter clientManifestWriter, String manifestReceiverName, String localReceiverUpdate,
+			boolean fullState, HashMap<String, String> acknowledged, HashMap<String, String> collectedStates) throws IOException {
+		String digest = stableDigest(localReceiverUpdate);
+		collectedStates.put(manifestReceiverName, digest);
+		if (fullState || digest.equals(acknowledged.get(manifestReceiverName)) == false) {
+			clientManifestWriter.write(localReceiverUpdate + "\n");
+		}
+	}
+	
+	private void writeLastGood(BufferedWriter clientManifestWriter, String manifestReceiverName, String reason,
+			boolean fullState, HashMap<String, String> acknowledged, HashMap<String, String> collectedStates) throws IOException {
+		String lastGood;
+		synchronized (this) {
+			lastGood = lastGoodStates.get(manifestReceiverName);
+		}
+		if (lastGood != null) {
+			writeState(clientManifestWriter, manifestReceiverName, lastGood, fullState, acknowledged, collectedStates);
+		} else {
+			writeUnavailable(clientManifestWriter, manifestReceiverName, reason);
+		}
+	}
+	
+	/*
+	 * Stands in for a receiver that had nothing to send, so that a full snapshot does not
+	 * read as if it had been removed. It is not acknowledged, so the next delta carries the
+	 * receiver's state again.
+	 */
+	private static void writeUnavailable(BufferedWriter clientManifestWriter, String manifestReceiverName, String reason) throws IOException {
+		clientManifestWriter.write("<unavailable name=\"" + manifestReceiverName.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;") +
+				"\" reason=\"" + reason + "\"/>\n");
+	}
+	
+	/* children of a state's root that change on every check without anything else changing */
+	private static final HashSet<String> VOLATILE_ELEMENTS = new HashSet<String>(Arrays.asList(
+			"lastCheck", "wakeLock", "metrics", "now", "stateCollected"));
+	
+	/*
+	 * What a delta compares: a digest of the state's elements, attributes and text with the
+	 * volatile children of its root left out. A state that does not parse is compared whole.
+	 */
+	static String stableDigest(String localReceiverUpdate) {
+		try {
+			MessageDigest digester = MessageDigest.getInstance(Util.HASH_ALGORITHM);
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(new StringReader(localReceiverUpdate));
+			int skipping = 0;
+			for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+				if (skipping > 0) {
+					if (eventType == XmlPullParser.END_TAG && parser.getDepth() == skipping) {
+						skipping = 0;
+					}
+					continue;
+				}
+				StringBuilder token = new StringBuilder();
+				if (eventType == XmlPullParser.START_TAG) {
+					if (parser.getDepth() == 2 && VOLATILE_ELEMENTS.contains(parser.getName())) {
+						skipping = 2;
+						continue;
+					}
+					token.append('<').append(parser.getName());
+					for (int index = 0; index < parser.getAttributeCount(); index++) {
+						token.append(' ').append(parser.getAttributeName(index)).append('=').append(parser.getAttributeValue(index));
+					}
+				} else if (eventType == XmlPullParser.END_TAG) {
+					token.append("</").append(parser.getName());
+				} else if (eventType == XmlPullParser.TEXT) {
+					token.append('"').append(parser.getText());
+				}
+				token.append('\n');
+				digester.update(token.toString().getBytes("UTF-8"));
+			}
+			return Util.digestToString(digester.digest());
+		} catch (Exception e) {
+			return localReceiverUpdate;
+		}
+	}
+	
+	/* called once the server has answered the exchange that carried client.xml */
+	private synchronized void acknowledgeState() {
+		if (pendingStates == null) {
+			return;
+		}
+		if (pendingFullState) {
+			acknowledgedStates.clear();
+			deltaStatesSinceFull = 0;
+		} else {
+			deltaStatesSinceFull++;
+		}
+		acknowledgedStates.putAll(pendingStates);
+		pendingStates = null;
 	}
 	
 	private synchronized boolean exchangeManifest(String manifestURL, ManifestParameters parameters) throws NoSuchAlgorithmException {
@@ -190,6 +467,11 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
             return false;
         }
 
+        /* let the server answer 304 when our copy is current, using only a tag it issued */
+        if (serverManifestFile.exists() && serverManifestTag.equals("") == false) {
+            connection.setRequestProperty("If-None-Match", serverManifestTag);
+        }
+
         /* try to upload local state file if it's not empty */
         if (clientManifestFile.length() > 0) {
             try {
@@ -203,15 +485,31 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
             }
 
             Log.v(TAG, "Uploaded state with length " + clientManifestFile.length() + " to " + url);
+            metrics.counter("stateBytesSent").add(clientManifestFile.length());
         }
 
         try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                connection.disconnect();
+                acknowledgeState();
+                Log.v(TAG, "Manifest not modified on " + url);
+                metrics.counter("manifestNotModified").increment();
+                if (manifestURL.equals(BACKUP_MANIFEST_URL) == false) {
+                    fallbackManifestCount = 0;
+                }
+                state.downloadedManifest = new Date();
+                return false;
+            }
+            String tag = connection.getHeaderField("ETag");
             Util.copyFile(new BufferedInputStream(connection.getInputStream()), new BufferedOutputStream(new FileOutputStream(newManifestFile)));
             connection.disconnect();			
+            acknowledgeState();
             if (newManifestFile.exists() && (newManifestFile.length() != 0)) {
-                Util.copyFile(newManifestFile, serverManifestFile);	
-                hash = Util.hashFile(serverManifestFile);
+                Util.replaceFile(newManifestFile, serverManifestFile);
+                writeManifestTag(tag);
+                hash = Util.checksumFile(serverManifestFile);
                 Log.i(TAG, "Retrieved manifest with length " + serverManifestFile.length() + " and hash " + hash + " from " + url);
+                metrics.counter("manifestBytesReceived").add(serverManifestFile.length());
             } else {
                 Log.e(TAG, "Manifest cannot be saved or has zero length.");
                 return false;
@@ -241,24 +539,54 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
         return (!(sameFile));
     }
 
-    private synchronized boolean distributeManifest(boolean reparseManifest, ManifestParameters parameters) throws TransformerConfigurationException, TransformerFactoryConfigurationError {
+    private String readManifestTag() {
+        if (serverManifestTagFile.exists() == false) {
+            return "";
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(serverManifestTagFile));
+            try {
+                String tag = reader.readLine();
+                return (tag == null) ? "" : tag.trim();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read manifest tag: " + e);
+            return "";
+        }
+    }
+
+    private void writeManifestTag(String tag) {
+        serverManifestTag = (tag == null) ? "" : tag.trim();
+        if (serverManifestTag.equals("")) {
+            serverManifestTagFile.delete();
+            return;
+        }
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(serverManifestTagFile));
+            try {
+                writer.write(serverManifestTag);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save manifest tag: " + e);
+            serverManifestTagFile.delete();
+        }
+    }
+
+    private synchronized boolean distributeManifest(boolean reparseManifest, ManifestParameters parameters) {
 
-        if ((manifestDocument == null) ||
+        if ((manifestFragments == null) ||
                 (reparseManifest == true)) {
-            BufferedInputStream manifestInputStream;
             try {
-                manifestInputStream = new BufferedInputStream(new FileInputStream(serverManifestFile));
-                manifestDocument = manifestBuilder.parse(manifestInputStream);
+                manifestFragments = parseManifest(serverManifestFile);
             } catch (Exception e) {
                 Log.e(TAG, "Unable to parse and distribute manifest: " + e);
                 return false;
             }
-                }
-
-        XPath manifestXPath = XPathFactory.newInstance().newXPath();
-
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        }
 
         for (HashMap.Entry<String, ManifestReceiver> entry : state.receivers.entrySet()) {
 
@@ -266,53 +594,106 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
             ManifestReceiver manifestReceiver = entry.getValue();
 
             Log.i(TAG, "Looking for " + receiverName + " in receive hash.");
-            String classNamePattern = "/manifest/" + receiverName;
-            try {
-                Node newReceiverNode = (Node) manifestXPath.evaluate(classNamePattern, manifestDocument, XPathConstants.NODE);
-                if (newReceiverNode == null) {
-                    Log.w(TAG, "No manifest entry for " + receiverName + ".");
-                    continue;
-                }
-                newReceiverNode.normalize();
-
-                boolean nodeChanged = false;
-
-                if (manifestReceiver.node == null) {
-                    Log.v(TAG, "No previous record for " + receiverName + ".");
-                    nodeChanged = true;
-                } else if (parameters.compareNodes == false) {
-                    Log.v(TAG, "Updates forced for " + receiverName + " regardless of node similarity.");
-                    nodeChanged = true;
-                } else if (newReceiverNode.isEqualNode(manifestReceiver.node) == false) {
-                    Log.v(TAG, "Updates due to changes in manifest for " + receiverName + ".");
-                    nodeChanged = true;
+            ManifestFragment fragment = manifestFragments.get(receiverName);
+            if (fragment == null) {
+                Log.w(TAG, "No manifest entry for " + receiverName + ".");
+                continue;
+            }
+
+            boolean nodeChanged = false;
+
+            if (manifestReceiver.fragmentHash == null) {
+                Log.v(TAG, "No previous record for " + receiverName + ".");
+                nodeChanged = true;
+            } else if (parameters.compareNodes == false) {
+                Log.v(TAG, "Updates forced for " + receiverName + " regardless of node similarity.");
+                nodeChanged = true;
+            } else if (fragment.hash.equals(manifestReceiver.fragmentHash) == false) {
+                Log.v(TAG, "Updates due to changes in manifest for " + receiverName + ".");
+                nodeChanged = true;
+            }
+
+            if (nodeChanged == true) {
+                Log.v(TAG, "Manifest for " + receiverName + " has changed. Updating.");
+                manifestReceiver.fragmentHash = fragment.hash;
+                try {
+                    manifestReceiver.updateTime = new Date();
+                    manifestReceiver.receiver.parametersUpdated(fragment.xml);
+                } catch (Exception e) {
+                    Log.e(TAG, "Remote update for " + receiverName + " generated exception: " + e);
                 }
+            } else {
+                Log.v(TAG, "Manifest for " + receiverName + " is unchanged.");
+            }
+        }
+        return true;
+    }
 
-                if (nodeChanged == true) {
-
-                    Log.v(TAG, "Manifest for " + receiverName + " has changed. Updating.");
-                    manifestReceiver.node = newReceiverNode;
-                    entry.setValue(manifestReceiver);
-
-                    DOMSource domSource = new DOMSource(manifestReceiver.node);
-                    StringWriter writer = new StringWriter();
-                    StreamResult result = new StreamResult(writer);
-                    transformer.transform(domSource, result);
-                    try {
-                        manifestReceiver.updateTime = new Date();
-                        manifestReceiver.receiver.parametersUpdated(writer.toString());
-                    } catch (Exception e) {
-                        Log.e(TAG, "Remote update for " + receiverName + " generated exception: " + e);
+    /*
+     * Splits the manifest into one fragment per child of the root in a single pass. Each
+     * fragment is re-serialized as it is read, so receivers get the same standalone XML
+     * they would from an XPath match, and the first entry wins for duplicate keys.
+     */
+    private HashMap<String, ManifestFragment> parseManifest(File manifestFile) throws XmlPullParserException, IOException, NoSuchAlgorithmException {
+        HashMap<String, ManifestFragment> fragments = new HashMap<String, ManifestFragment>();
+        XmlPullParser parser = Xml.newPullParser();
+        InputStreamReader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(manifestFile)), "UTF-8");
+        try {
+            parser.setInput(reader);
+            StringBuilder fragment = null;
+            String fragmentName = null;
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                int depth = parser.getDepth();
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (depth == 1 && parser.getName().equals("manifest") == false) {
+                        Log.w(TAG, "Manifest root is " + parser.getName() + ", not manifest.");
+                        return fragments;
+                    } else if (depth == 2) {
+                        fragmentName = parser.getName();
+                        fragment = new StringBuilder();
+                    }
+                    if (fragment != null) {
+                        fragment.append('<').append(parser.getName());
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            fragment.append(' ').append(parser.getAttributeName(i)).append("=\"");
+                            escapeXml(fragment, parser.getAttributeValue(i));
+                            fragment.append('"');
+                        }
+                        fragment.append('>');
+                    }
+                } else if (eventType == XmlPullParser.TEXT && fragment != null) {
+                    escapeXml(fragment, parser.getText());
+                } else if (eventType == XmlPullParser.END_TAG && fragment != null) {
+                    fragment.append("</").append(parser.getName()).append('>');
+                    if (depth == 2) {
+                        if (fragments.containsKey(fragmentName) == false) {
+                            String xml = fragment.toString();
+                            fragments.put(fragmentName, new ManifestFragment(xml, Util.hashString(xml)));
+                        }
+                        fragment = null;
+                        fragmentName = null;
                     }
-                } else {
-                    Log.v(TAG, "Manifest for " + receiverName + " is unchanged.");
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Exception occured during manifest distribution: " + e);
-                continue;
+                eventType = parser.next();
+            }
+        } finally {
+            reader.close();
+        }
+        return fragments;
+    }
+
+    private static void escapeXml(StringBuilder builder, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': builder.append("&lt;"); break;
+                case '>': builder.append("&gt;"); break;
+                case '&': builder.append("&amp;"); break;
+                case '"': builder.append("&quot;"); break;
+                default: builder.append(c);
             }
         }
-        return true;
     }
 
     public synchronized void receiveManifestUpdates(ManifestClient receiver, String key) {
@@ -343,6 +724,7 @@ public class ManifestTask extends PeriodicTask<ManifestParameters, ManifestState
         }
 
         state.receivers.remove(key);
+        acknowledgedStates.remove(key);
         Log.v(TAG, "Removed " + key + " for manifest updates.");
     }
 
@@ -390,12 +772,22 @@ class ManifestReceiver {
     Date updateTime;
 
     public ManifestClient receiver;
-    public Node node;
-    public ManifestReceiver(ManifestClient receiver, Node node) {
+    public String fragmentHash;
+    public ManifestReceiver(ManifestClient receiver, String fragmentHash) {
         this.updateTime = new Date(0L);
         this.receiver = receiver;
         this.receiverName = receiver.getClass().getName();
-        this.node = node;
+        this.fragmentHash = fragmentHash;
+    }
+}
+
+class ManifestFragment {
+    final String xml;
+    final String hash;
+
+    ManifestFragment(String xml, String hash) {
+        this.xml = xml;
+        this.hash = hash;
     }
 }
 
@@ -421,6 +813,18 @@ class ManifestParameters extends PeriodicParameters {
     @Element(required=false)
     public Integer chunkSizeKB;
 
+    // Upload a full state snapshot every fullStateInterval exchanges and only changed
+    // receivers in between. 1 sends every snapshot in full.
+
+    @Element(required=false)
+    public Integer fullStateInterval;
+
+    // Seconds each receiver gets to return its state before its last good state is
+    // sent instead. 0 waits for every receiver.
+
+    @Element(required=false)
+    public Integer collectTimeoutSec;
+
     public ManifestParameters() {
         super();
         checkInterval = AlarmManager.INTERVAL_HALF_HOUR / 1000L;
@@ -429,6 +833,8 @@ class ManifestParameters extends PeriodicParameters {
         compareNodes = true;
         chunkedTransferMode = false;
         chunkSizeKB = 32;
+        fullStateInterval = 1;
+        collectTimeoutSec = 0;
     }
 
     public ManifestParameters(ManifestParameters parameters) {
@@ -438,13 +844,56 @@ class ManifestParameters extends PeriodicParameters {
         compareNodes = parameters.compareNodes;
         chunkedTransferMode = parameters.chunkedTransferMode;
         chunkSizeKB = parameters.chunkSizeKB;
+        fullStateInterval = parameters.fullStateInterval;
+        collectTimeoutSec = parameters.collectTimeoutSec;
+    }
+
+    @Override
+    public void writeFields(DataOutput out) throws IOException {
+        super.writeFields(out);
+        ParameterStore.writeString(out, manifestURL);
+        ParameterStore.writeBoolean(out, compareFiles);
+        ParameterStore.writeBoolean(out, compareNodes);
+        ParameterStore.writeBoolean(out, chunkedTransferMode);
+        ParameterStore.writeInteger(out, chunkSizeKB);
+        ParameterStore.writeInteger(out, fullStateInterval);
+        ParameterStore.writeInteger(out, collectTimeoutSec);
+    }
+
+    @Override
+    public void readFields(DataInput in, int version) throws IOException {
+        super.readFields(in, version);
+        manifestURL = ParameterStore.readString(in);
+        compareFiles = ParameterStore.readBoolean(in);
+        compareNodes = ParameterStore.readBoolean(in);
+        chunkedTransferMode = ParameterStore.readBoolean(in);
+        chunkSizeKB = ParameterStore.readInteger(in);
+        fullStateInterval = ParameterStore.readInteger(in);
+        if (version >= 6) {
+            collectTimeoutSec = ParameterStore.readInteger(in);
+        }
+    }
+
+    public int getFullStateInterval() {
+        if (fullStateInterval == null || fullStateInterval < 1) {
+            return 1;
+        }
+        return fullStateInterval;
+    }
+
+    public long getCollectTimeoutMS() {
+        if (collectTimeoutSec == null || collectTimeoutSec < 0) {
+            return 0L;
+        }
+        return collectTimeoutSec * 1000L;
     }
 
     @Override
     public String toString() {
         return "ManifestParameters [manifestURL=" + manifestURL
             + ", compareFiles=" + compareFiles + ", compareNodes="
-            + compareNodes + "]";
+            + compareNodes + ", fullStateInterval=" + fullStateInterval
+            + ", collectTimeoutSec=" + collectTimeoutSec + "]";
     }
     @Override
     public int hashCode() {
@@ -454,6 +903,10 @@ class ManifestParameters extends PeriodicParameters {
             + ((compareFiles == null) ? 0 : compareFiles.hashCode());
         result = prime * result
             + ((compareNodes == null) ? 0 : compareNodes.hashCode());
+        result = prime * result
+            + ((fullStateInterval == null) ? 0 : fullStateInterval.hashCode());
+        result = prime * result
+            + ((collectTimeoutSec == null) ? 0 : collectTimeoutSec.hashCode());
         result = prime * result
             + ((manifestURL == null) ? 0 : manifestURL.hashCode());
         return result;
@@ -477,6 +930,16 @@ class ManifestParameters extends PeriodicParameters {
                 return false;
         } else if (!compareNodes.equals(other.compareNodes))
             return false;
+        if (fullStateInterval == null) {
+            if (other.fullStateInterval != null)
+                return false;
+        } else if (!fullStateInterval.equals(other.fullStateInterval))
+            return false;
+        if (collectTimeoutSec == null) {
+            if (other.collectTimeoutSec != null)
+                return false;
+        } else if (!collectTimeoutSec.equals(other.collectTimeoutSec))
+            return false;
         if (manifestURL == null) {
             if (other.manifestURL != null)
                 return false;
@@ -0,0 +1,100 @@
+package edu.buffalo.cse.phonelab.harness.lib.tasks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
+import edu.buffalo.cse.phonelab.harness.lib.util.Util;
+
+/*
+ * Wire format of a batch post. Every file is one multipart/form-data part named by its
+ * index in the batch, with a packagename/filename and gzip content encoding; segments that
+ * are already compressed are sent as stored. The server answers with one
+ * "<index> <status>" line per part, and parts without a "200" line are sent again in a
+ * later batch. Nothing here touches Android, so tests/BatchUploadReceiver drives it
+ * against a stand-in server on the plain JVM.
+ */
+class UploadBatch {
+
+	public static final String ACK_OK = "200";
+
+	final List<UploaderFileDescription> files;
+	final String boundary;
+
+	public UploadBatch(List<UploaderFileDescription> files) {
+		this.files = files;
+		this.boundary = Long.toHexString(new Random().nextLong()) + Long.toHexString(System.currentTimeMillis());
+	}
+
+	public String contentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	/* writes the whole body, the caller closes out */
+	public void write(OutputStream out) throws IOException {
+		for (int index = 0; index < files.size(); index++) {
+			UploaderFileDescription uploaderFileDescription = files.get(index);
+			StringBuilder header = new StringBuilder();
+			header.append("--").append(boundary).append("\r\n");
+			header.append("Content-Disposition: form-data; name=\"").append(index)
+				  .append("\"; filename=\"").append(uploaderFileDescription.packagename)
+				  .append("/").append(uploaderFileDescription.filename).append("\"\r\n");
+			header.append("Content-Type: application/octet-stream\r\n");
+			header.append("Content-Encoding: gzip\r\n\r\n");
+			out.write(header.toString().getBytes("UTF-8"));
+
+			File src = new File(uploaderFileDescription.src);
+			if (uploaderFileDescription.isCompressed()) {
+				Util.copyMapped(src, out);
+			} else {
+				GZIPOutputStream partStream = new GZIPOutputStream(new NonClosingOutputStream(out));
+				Util.copyMapped(src, partStream);
+				partStream.close();
+			}
+			out.write("\r\n".getBytes("UTF-8"));
+		}
+		out.write(("--" + boundary + "--\r\n").getBytes("UTF-8"));
+	}
+
+	/* indices the server accepted; malformed lines and other statuses are ignored */
+	public HashSet<Integer> readAcknowledged(InputStream in) throws IOException {
+		HashSet<Integer> acknowledged = new HashSet<Integer>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] ack = line.trim().split("\\s+");
+			if (ack.length == 2 && ack[1].equals(ACK_OK)) {
+				try {
+					int index = Integer.parseInt(ack[0]);
+					if (index >= 0 && index < files.size()) {
+						acknowledged.add(index);
+					}
+				} catch (NumberFormatException e) { }
+			}
+		}
+		return acknowledged;
+	}
+
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		public NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+		}
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
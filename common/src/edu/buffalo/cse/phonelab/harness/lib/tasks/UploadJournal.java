@@ -0,0 +1,309 @@
+package edu.buffalo.cse.phonelab.harness.lib.tasks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
+
+/*
+ * The uploader's queue of files, kept as an append-only journal of tab separated lines:
+ *
+ *   E client encoding filename packagename src   enqueued
+ *   F src                                         handed to a transfer
+ *   A src                                         acknowledged, or gone from disk
+ *   R src                                         failed or held back, pending again
+ *
+ * Replay rebuilds the pending files of each client in enqueue order; files that were in
+ * flight when the process died are pending again. Enqueues and acknowledgements are
+ * synced, the other records only matter while the process lives. Once most records are
+ * dead the journal is rewritten with one E line per live file.
+ */
+class UploadJournal {
+
+	private static final String TAG = "PhoneLabServices-UploadJournal";
+	private static final String JOURNAL_FILENAME = "journal";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final String NO_ENCODING = "-";
+	private static final int COMPACTION_SLACK = 256;
+
+	private static final String ENQUEUED = "E";
+	private static final String IN_FLIGHT = "F";
+	private static final String ACKNOWLEDGED = "A";
+	private static final String RETURNED = "R";
+
+	private class Entry {
+		String client;
+		String contentEncoding;
+		String filename;
+		String packagename;
+		String src;
+		long len;
+		boolean inFlight;
+
+		public String toRecord() {
+			return ENQUEUED + "\t" + client + "\t" + (contentEncoding == null ? NO_ENCODING : contentEncoding) +
+					"\t" + filename + "\t" + packagename + "\t" + src;
+		}
+	}
+
+	private final File journalFile;
+	private final LinkedHashMap<String, Entry> entries;
+	private final HashMap<String, ArrayDeque<Entry>> pending;
+	private long pendingBytes;
+	private int records;
+	private FileOutputStream journalStream;
+	private Writer journalWriter;
+
+	public UploadJournal(File dir) {
+		this.journalFile = new File(dir, JOURNAL_FILENAME);
+		this.entries = new LinkedHashMap<String, Entry>();
+		this.pending = new HashMap<String, ArrayDeque<Entry>>();
+		this.pendingBytes = 0L;
+		replay();
+		compact();
+	}
+
+	private void replay() {
+		if (journalFile.exists() == false) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields[0].equals(ENQUEUED) && fields.length == 6) {
+						Entry entry = new Entry();
+						entry.client = fields[1];
+						entry.contentEncoding = fields[2].equals(NO_ENCODING) ? null : fields[2];
+						entry.filename = fields[3];
+						entry.packagename = fields[4];
+						entry.src = fields[5];
+						entries.put(entry.src, entry);
+					} else if (fields.length == 2 && entries.containsKey(fields[1])) {
+						if (fields[0].equals(ACKNOWLEDGED)) {
+							entries.remove(fields[1]);
+						} else {
+							entries.get(fields[1]).inFlight = fields[0].equals(IN_FLIGHT);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to replay upload journal: " + e);
+		}
+		int interrupted = 0;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			File file = new File(entry.src);
+			if (file.exists() == false) {
+				iterator.remove();
+				continue;
+			}
+			if (entry.inFlight == true) {
+				interrupted++;
+				entry.inFlight = false;
+			}
+			entry.len = file.length();
+			push(entry, false);
+		}
+		Log.v(TAG, "Replayed " + entries.size() + " queued files, " + interrupted + " of them interrupted in flight.");
+	}
+
+	private void push(Entry entry, boolean first) {
+		ArrayDeque<Entry> queue = pending.get(entry.client);
+		if (queue == null) {
+			queue = new ArrayDeque<Entry>();
+			pending.put(entry.client, queue);
+		}
+		if (first == true) {
+			queue.addFirst(entry);
+		} else {
+			queue.addLast(entry);
+		}
+		pendingBytes += entry.len;
+	}
+
+	private void append(String record, boolean sync) {
+		try {
+			if (journalWriter == null) {
+				journalStream = new FileOutputStream(journalFile, true);
+				journalWriter = new OutputStreamWriter(journalStream, "UTF-8");
+			}
+			journalWriter.write(record);
+			journalWriter.write("\n");
+			journalWriter.flush();
+			if (sync == true) {
+				journalStream.getFD().sync();
+			}
+			records++;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to append to upload journal: " + e);
+			close();
+		}
+	}
+
+	/* files already queued are left where they are */
+	public synchronized boolean enqueue(String client, UploaderFileDescription uploaderFileDescription) {
+		if (entries.containsKey(uploaderFileDescription.src)) {
+			return true;
+		}
+		if (separated(client) || separated(uploaderFileDescription.filename) ||
+				separated(uploaderFileDescription.packagename) || separated(uploaderFileDescription.src)) {
+			Log.e(TAG, "Unable to queue " + uploaderFileDescription.src + ": tab or newline in a field.");
+			return false;
+		}
+		Entry entry = new Entry();
+		entry.client = client;
+		entry.contentEncoding = uploaderFileDescription.contentEncoding;
+		entry.filename = uploaderFileDescription.filename;
+		entry.packagename = uploaderFileDescription.packagename;
+		entry.src = uploaderFileDescription.src;
+		entry.len = uploaderFileDescription.len;
+		append(entry.toRecord(), true);
+		entries.put(entry.src, entry);
+		push(entry, false);
+		return true;
+	}
+
+	private static boolean separated(String field) {
+		return field == null || field.indexOf('\t') >= 0 || field.indexOf('\n') >= 0;
+	}
+	
+	public synchronized boolean hasNext(String client) {
+		ArrayDeque<Entry> queue = pending.get(client);
+		return queue != null && queue.isEmpty() == false;
+	}
+
+	/* files that disappeared while queued are dropped on the way */
+	public synchronized UploaderFileDescription next(String client) {
+		ArrayDeque<Entry> queue = pending.get(client);
+		while (queue != null && queue.isEmpty() == false) {
+			Entry entry = queue.pollFirst();
+			pendingBytes -= entry.len;
+			UploaderFileDescription uploaderFileDescription;
+			try {
+				uploaderFileDescription = new UploaderFileDescription(entry.src, entry.filename, entry.packagename);
+			} catch (Exception e) {
+				Log.w(TAG, "Dropping " + entry.src + " from upload queue: " + e);
+				drop(entry);
+				continue;
+			}
+			uploaderFileDescription.contentEncoding = entry.contentEncoding;
+			entry.len = uploaderFileDescription.len;
+			entry.inFlight = true;
+			append(IN_FLIGHT + "\t" + entry.src, false);
+			return uploaderFileDescription;
+		}
+		return null;
+	}
+
+	public synchronized void complete(UploaderFileDescription uploaderFileDescription, boolean success) {
+		Entry entry = entries.get(uploaderFileDescription.src);
+		if (entry == null || entry.inFlight == false) {
+			return;
+		}
+		entry.inFlight = false;
+		if (success == true) {
+			drop(entry);
+		} else {
+			append(RETURNED + "\t" + entry.src, false);
+			push(entry, true);
+		}
+	}
+
+	private void drop(Entry entry) {
+		entries.remove(entry.src);
+		append(ACKNOWLEDGED + "\t" + entry.src, true);
+		if (records > 2 * entries.size() + COMPACTION_SLACK) {
+			compact();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long pendingBytes() {
+		return pendingBytes;
+	}
+
+	public synchronized ArrayList<String> pending(String client) {
+		ArrayList<String> sources = new ArrayList<String>();
+		ArrayDeque<Entry> queue = pending.get(client);
+		if (queue != null) {
+			for (Entry entry : queue) {
+				sources.add(entry.src);
+			}
+		}
+		return sources;
+	}
+
+	public synchronized int pendingFiles(String client) {
+		ArrayDeque<Entry> queue = pending.get(client);
+		return (queue == null) ? 0 : queue.size();
+	}
+
+	public synchronized long pendingBytes(String client) {
+		long bytes = 0L;
+		ArrayDeque<Entry> queue = pending.get(client);
+		if (queue != null) {
+			for (Entry entry : queue) {
+				bytes += entry.len;
+			}
+		}
+		return bytes;
+	}
+
+	private void compact() {
+		close();
+		File temporary = new File(journalFile.getPath() + TEMPORARY_SUFFIX);
+		try {
+			FileOutputStream temporaryStream = new FileOutputStream(temporary);
+			try {
+				Writer writer = new OutputStreamWriter(temporaryStream, "UTF-8");
+				for (Entry entry : entries.values()) {
+					writer.write(entry.toRecord());
+					writer.write("\n");
+				}
+				writer.flush();
+				temporaryStream.getFD().sync();
+			} finally {
+				temporaryStream.close();
+			}
+			if (temporary.renameTo(journalFile) == false) {
+				throw new IOException("Unable to rename " + temporary.getName());
+			}
+			records = entries.size();
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to compact upload journal: " + e);
+			temporary.delete();
+		}
+	}
+
+	public synchronized void close() {
+		if (journalWriter != null) {
+			try {
+				journalWriter.close();
+			} catch (IOException e) { }
+		}
+		journalWriter = null;
+		journalStream = null;
+	}
+}
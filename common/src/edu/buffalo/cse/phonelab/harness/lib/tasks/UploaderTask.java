@@ -1,8 +1,14 @@
 package edu.buffalo.cse.phonelab.harness.lib.tasks;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
@@ -10,9 +16,20 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
+import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
@@ -23,16 +40,21 @@ import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import edu.buffalo.cse.phonelab.harness.lib.R;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderClient;
 import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
+import edu.buffalo.cse.phonelab.harness.lib.metrics.Histogram;
+import edu.buffalo.cse.phonelab.harness.lib.periodictask.ParameterStore;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicParameters;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicState;
 import edu.buffalo.cse.phonelab.harness.lib.periodictask.PeriodicTask;
@@ -41,6 +63,7 @@ import edu.buffalo.cse.phonelab.harness.lib.util.Util;
 public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState> {
 	
 	private final Integer UPLOAD_NOTIFICATION_ID = 1;
+	private static final String BATCH_FILENAME = "batch";
 	
 	public final IBinder uploaderBinder = new LoggerBinder();
 	public class LoggerBinder extends Binder {
@@ -49,8 +72,15 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 		}
 	}
 	
+	private final RetryPolicy retryPolicy;
+	private final FairShare fairShare;
+	private final UploadJournal journal;
+	
 	public UploaderTask(Context context) {
 		super(context, "UploaderService");
+		retryPolicy = new RetryPolicy(context);
+		fairShare = new FairShare(context);
+		journal = new UploadJournal(context.getDir(this.getClass().getSimpleName(), Context.MODE_PRIVATE));
 		startPeriodicTimer = false;
 		addAction(Intent.ACTION_POWER_CONNECTED);
 		addAction(Intent.ACTION_POWER_DISCONNECTED);
@@ -62,6 +92,9 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 	@Override
 	public void start() {
 		taskRunning = true;
+		UploadSession.prune(context);
+		NetworkHistory.prune(context);
+		retryPolicy.prune();
 		super.start();
 	}
 	
@@ -72,6 +105,7 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 			taskRunning = false;
 		}
 		super.stop();
+		journal.close();
 	}
 
 	private boolean uploadEnabled = false;
@@ -124,6 +158,8 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 		
 		UploaderParameters currentParameters;
 		Integer localFailureCount;
+		/* why dispatching stopped before the queue drained, in which case nothing is rescheduled */
+		String stopReason;
 		
 		public Upload() {
 			this.localFailureCount = 0;
@@ -135,13 +171,26 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 		@Override
 		protected Void doInBackground(Void...voids) {
 			
-			UploaderTask.acquireLock(UploaderTask.this.context);
+			UploaderTask.this.acquireLock();
 			
 			Integer totalBytes = 0;
 			
 			NotificationManager notificationManager = (NotificationManager) UploaderTask.this.context.getSystemService(Context.NOTIFICATION_SERVICE);
 			
 			UploaderIterable uploaderIterable = new UploaderIterable(UploaderTask.this);
+			
+			// Files are dispatched in weighted fair order to a bounded pool of transfers instead
+			// of waiting on each response in turn.
+			
+			NetworkHistory link = NetworkHistory.current(UploaderTask.this.context);
+			int concurrentUploads = currentParameters.adaptTo(link).getConcurrentUploads();
+			long runStarted = SystemClock.elapsedRealtime();
+			UploaderIterable.UploaderIterator uploaderIterator = uploaderIterable.iterator(concurrentUploads, currentParameters);
+			ExecutorService transferExecutor = Executors.newFixedThreadPool(concurrentUploads);
+			CompletionService<Transfer> transferCompletion = new ExecutorCompletionService<Transfer>(transferExecutor);
+			ArrayList<Transfer> running = new ArrayList<Transfer>();
+			int inFlight = 0;
+			boolean dispatching = true;
 			try {
 				Notification.Builder builder = new Notification.Builder(UploaderTask.this.context);
 				builder.setContentTitle("PhoneLab");
@@ -152,85 +201,163 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 				builder.setProgress((int) uploaderIterable.totalBytes, 0, false);
 				builder.setTicker("Uploading experiment data.");
 				
-				for (UploaderFileDescription uploaderFileDescription : uploaderIterable) {
-					
-					Log.v(TAG, "Starting upload.");
+				while (true) {
 					
 					synchronized (parameterLock) {
 						currentParameters = parameters;
 					}
-					if (canUpload(currentParameters) == false) {
+					if (dispatching == true && canUpload(currentParameters) == false) {
 						Log.v(TAG, "Completing upload early due to parameter change.");
-						break;
+						stopReason = "parameter change";
+						dispatching = false;
 					}
-					if (this.isCancelled()) {
+					if (dispatching == true && this.isCancelled()) {
 						Log.v(TAG, "Task cancelled. Exiting.");
-						break;
+						stopReason = "cancelled";
+						dispatching = false;
 					}
-					URL url;
-					try {
-						url = new URL(currentParameters.loggerURL + 
-									  Util.getVersionName(context) + 
-									  "/" + Util.getDeviceID(UploaderTask.this.context) +
-									  "/" + uploaderFileDescription.packagename +
-									  "/" + uploaderFileDescription.filename);
+					if (dispatching == true && link != null && link.isConstrained(currentParameters) && link.remainingBudget(currentParameters) <= 0L) {
+						Log.v(TAG, "Byte budget for constrained network " + link.key + " used up.");
+						stopReason = "constrained network budget used up";
+						dispatching = false;
+					}
+					
+					while (dispatching == true && inFlight < concurrentUploads && uploaderIterator.hasNext()) {
 						
-					} catch (Exception e) {
-						Log.e(TAG, "Unable to construct URL: " + e);
-						break;
+						ArrayList<UploaderFileDescription> uploaderFileDescriptions;
+						try {
+							uploaderFileDescriptions = uploaderIterator.nextBatch(currentParameters.getBatchBytes());
+						} catch (NoSuchElementException e) {
+							Log.e(TAG, "Exception during upload loop: " + e);
+							stopReason = e.toString();
+							dispatching = false;
+							break;
+						}
+						
+						Log.v(TAG, "Starting upload of " + uploaderFileDescriptions.size() + " files.");
+						
+						URL url;
+						try {
+							UploaderFileDescription first = uploaderFileDescriptions.get(0);
+							url = new URL(currentParameters.loggerURL + 
+										  Util.getVersionName(context) + 
+										  "/" + Util.getDeviceID(UploaderTask.this.context) +
+										  "/" + first.packagename +
+										  "/" + (uploaderFileDescriptions.size() == 1 ? first.filename : BATCH_FILENAME));
+							
+						} catch (Exception e) {
+							Log.e(TAG, "Unable to construct URL: " + e);
+							for (UploaderFileDescription uploaderFileDescription : uploaderFileDescriptions) {
+								UploaderTask.this.complete(uploaderFileDescription, false);
+							}
+							uploaderIterator.completed(uploaderFileDescriptions.get(0).uploader);
+							stopReason = "bad URL";
+							dispatching = false;
+							break;
+						}
+						
+						Log.v(TAG, "Uploading to " + url + " with parameters " + currentParameters);
+						Transfer transfer = new Transfer(uploaderFileDescriptions, url, currentParameters.adaptTo(link));
+						transferCompletion.submit(transfer);
+						running.add(transfer);
+						inFlight++;
 					}
 					
-					Log.v(TAG, "Uploading to " + url + " with parameters " + currentParameters);
+					if (inFlight == 0) {
+						break;
+					}
 					
 					builder.setProgress((int) uploaderIterable.totalBytes, totalBytes, false);
 					notificationManager.notify(UPLOAD_NOTIFICATION_ID, builder.build());
 					
-					HttpURLConnection connection;
-					try {	
-						BufferedInputStream src = new BufferedInputStream(new FileInputStream(new File(uploaderFileDescription.src)));
-						connection = Util.upload(url, src, true,
-												 currentParameters.chunkedTransferMode, currentParameters.chunkSizeKB, currentParameters.connectionTimeoutSec);
-						connection.getInputStream();
-						connection.disconnect();
-						if (connection.getResponseCode() != 200) {
-							Log.e(TAG, "Upload failed: " + connection.getResponseCode());
-							throw new Exception("Failure error code");
-						} else {
-							UploaderTask.this.uploadedBytes += (int) uploaderFileDescription.len;
-							totalBytes += (int) uploaderFileDescription.len;
-							Log.v(TAG, "Uploaded " + uploaderFileDescription.len + " bytes successfully. Continuing.");
-							uploaderFileDescription.uploader.complete(uploaderFileDescription, true);
-						}
-					} catch (Exception e) {
-						Log.w(TAG, "Upload failed: " + e + ". Continuing with next file.");
-						uploaderFileDescription.uploader.complete(uploaderFileDescription, false);
-						if (localFailureCount++ > currentParameters.failureCount) {
-							break;
-						}
+					Future<Transfer> done = transferCompletion.take();
+					inFlight--;
+					Transfer transfer = done.get();
+					running.remove(transfer);
+					finished(transfer, uploaderIterator, link, runStarted);
+					totalBytes += (int) transfer.uploadedBytes;
+					if (transfer.failures > 0 && localFailureCount++ > currentParameters.failureCount) {
+						stopReason = "failures";
+						dispatching = false;
 					}
 				}
-			} catch (NoSuchElementException e) {
+			} catch (InterruptedException e) {
+				Log.v(TAG, "Upload loop interrupted with " + inFlight + " transfers in flight.");
+				stopReason = "interrupted";
+			} catch (ExecutionException e) {
 				Log.e(TAG, "Exception during upload loop: " + e);
+				stopReason = e.toString();
 			} finally {
+				
+				// Held files are only released once every transfer has returned its own, or a
+				// file still being sent could be handed out again. Resumable transfers stop at
+				// their next piece, the rest are bounded by the connection timeouts.
+				
+				for (Transfer transfer : running) {
+					transfer.stopping = true;
+				}
+				while (inFlight > 0) {
+					try {
+						Future<Transfer> done = transferCompletion.take();
+						inFlight--;
+						finished(done.get(), uploaderIterator, link, runStarted);
+					} catch (InterruptedException e) {
+						Log.v(TAG, "Still waiting for " + inFlight + " transfers in flight.");
+					} catch (ExecutionException e) {
+						Log.e(TAG, "Exception during transfer: " + e);
+					}
+				}
+				transferExecutor.shutdown();
+				if (link != null) {
+					link.sample(SystemClock.elapsedRealtime() - runStarted);
+					link.save(UploaderTask.this.context);
+				}
+				uploaderIterator.release();
+				retryPolicy.save();
+				fairShare.save();
+				ArrayList<ClientShare> shares = uploaderIterator.shares();
+				long now = System.currentTimeMillis();
+				int deferredFiles = retryPolicy.deferredFiles(now);
+				int quarantinedFiles = retryPolicy.quarantinedFiles(currentParameters);
+				int openClients = retryPolicy.openClients(now);
+				synchronized (UploaderTask.this.stateLock) {
+					UploaderTask.this.state.deferredFiles = deferredFiles;
+					UploaderTask.this.state.quarantinedFiles = quarantinedFiles;
+					UploaderTask.this.state.openClients = openClients;
+				}
+				synchronized (UploaderTask.this.stateLock) {
+					UploaderTask.this.state.queuedFiles = journal.size();
+					UploaderTask.this.state.queuedBytes = journal.pendingBytes();
+					UploaderTask.this.state.shares = shares;
+				}
+				metrics.gauge("deferredFiles").set(deferredFiles);
+				metrics.gauge("quarantinedFiles").set(quarantinedFiles);
 				notificationManager.cancel(UPLOAD_NOTIFICATION_ID);
 				Log.v(TAG, "Completed upload loop.");
+				UploaderTask.this.releaseLock();
 			}
-			UploaderTask.releaseLock();
 			return null;
 		}
 		
+		private void finished(Transfer transfer, UploaderIterable.UploaderIterator uploaderIterator, NetworkHistory link, long runStarted) {
+			uploaderIterator.completed(transfer.uploaderFileDescriptions.get(0).uploader);
+			UploaderTask.this.uploadedBytes += (int) transfer.uploadedBytes;
+			if (link != null) {
+				link.transferred(transfer.uploadedBytes, SystemClock.elapsedRealtime() - runStarted, currentParameters);
+			}
+		}
+		
 		@Override
 		protected void onPostExecute(Void result) {
-			if (localFailureCount > currentParameters.failureCount) {
-				Log.i(TAG, "Not attempting to reschedule upload task due to failures.");
+			if (stopReason != null) {
+				Log.i(TAG, "Not attempting to reschedule upload task: stopped early due to " + stopReason + ".");
 				synchronized (UploaderTask.this.stateLock) {
 					UploaderTask.this.state.lastUpload = new Date();
 					UploaderTask.this.state.uploadedBytes = UploaderTask.this.uploadedBytes;
 					UploaderTask.this.uploadedBytes = 0;
 				}
 			} else {
-				UploaderIterable uploaderIterable = new UploaderIterable(UploaderTask.this);
-				if (uploaderIterable.iterator().hasNext()) {
+				if (new UploaderIterable(UploaderTask.this).waiting(currentParameters) == true) {
 					Log.v(TAG, "Immediately rescheduling upload task due to waiting streams.");
 					scheduledUploadTask = new Upload().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 				} else {
@@ -244,6 +371,239 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 		}
 	}
 	
+	/*
+	 * A transfer sends either a single file to its own URL or, when batching is enabled,
+	 * several files from one client as a multipart/form-data body posted to BATCH_FILENAME.
+	 * Each part is named by its index and carries packagename/filename, and the server
+	 * answers with one "<index> <status>" line per part so every file completes on its own.
+	 */
+	private class Transfer implements Callable<Transfer> {
+		
+		ArrayList<UploaderFileDescription> uploaderFileDescriptions;
+		URL url;
+		UploaderParameters transferParameters;
+		long uploadedBytes;
+		int failures;
+		volatile boolean stopping;
+		
+		public Transfer(ArrayList<UploaderFileDescription> uploaderFileDescriptions, URL url, UploaderParameters transferParameters) {
+			this.uploaderFileDescriptions = uploaderFileDescriptions;
+			this.url = url;
+			this.transferParameters = transferParameters;
+			this.uploadedBytes = 0L;
+			this.failures = 0;
+		}
+		
+		@Override
+		public Transfer call() {
+			long started = SystemClock.elapsedRealtime();
+			if (uploaderFileDescriptions.size() == 1) {
+				UploaderFileDescription uploaderFileDescription = uploaderFileDescriptions.get(0);
+				if (transferParameters.isResumable(uploaderFileDescription.len)) {
+					uploadResumable(uploaderFileDescription);
+				} else {
+					uploadFile(uploaderFileDescription);
+				}
+			} else {
+				uploadBatch();
+			}
+			long elapsedMS = Math.max(1L, SystemClock.elapsedRealtime() - started);
+			metrics.histogram("transferMS", Histogram.LATENCY_MS).record(elapsedMS);
+			if (uploadedBytes > 0L) {
+				metrics.histogram("throughputKBps", Histogram.THROUGHPUT_KBPS).record(uploadedBytes * 1000L / 1024L / elapsedMS);
+			}
+			return this;
+		}
+		
+		private void completed(UploaderFileDescription uploaderFileDescription, boolean success) {
+			if (success == true) {
+				uploadedBytes += uploaderFileDescription.len;
+				metrics.counter("filesUploaded").increment();
+			} else {
+				failures++;
+				metrics.counter("filesFailed").increment();
+			}
+			retryPolicy.record(uploaderFileDescription, success, transferParameters);
+			if (success == true) {
+				fairShare.uploaded(uploaderFileDescription.uploader.getClass().getName(), uploaderFileDescription.len);
+			}
+			UploaderTask.this.complete(uploaderFileDescription, success);
+		}
+		
+		private void failed(UploaderFileDescription uploaderFileDescription, Exception cause) {
+			if (cause instanceof HttpStatusException) {
+				metrics.counter("failures.http" + ((HttpStatusException) cause).status).increment();
+			} else {
+				metrics.counter("failures." + cause.getClass().getSimpleName()).increment();
+			}
+			completed(uploaderFileDescription, false);
+		}
+		
+		private void uploadFile(UploaderFileDescription uploaderFileDescription) {
+			HttpURLConnection connection;
+			try {	
+				File src = new File(uploaderFileDescription.src);
+				connection = Util.upload(url, src, true, uploaderFileDescription.isCompressed(),
+										 transferParameters.chunkedTransferMode, transferParameters.chunkSizeKB, transferParameters.connectionTimeoutSec);
+				int responseCode = connection.getResponseCode();
+				connection.disconnect();
+				if (responseCode != 200) {
+					Log.e(TAG, "Upload failed: " + responseCode);
+					throw new HttpStatusException(responseCode);
+				} else {
+					Log.v(TAG, "Uploaded " + uploaderFileDescription.len + " bytes successfully. Continuing.");
+					completed(uploaderFileDescription, true);
+				}
+			} catch (Exception e) {
+				Log.w(TAG, "Upload failed: " + e + ". Continuing with next file.");
+				failed(uploaderFileDescription, e);
+			}
+		}
+		
+		/*
+		 * Large files are sent in chunkSizeKB pieces tagged with an upload session id and a
+		 * Content-Range. The server answers 308 with the committed Range after each piece and
+		 * 200/201 once the file is whole; the committed offset is persisted so that a retry
+		 * first asks the server where it stopped with an empty request whose Content-Range has
+		 * no byte range, and then only sends the rest. Offsets are in stored file bytes. Pieces
+		 * of raw files are gzip encoded on the wire, pieces of precompressed files are opaque
+		 * slices of the stored gzip data.
+		 */
+		private void uploadResumable(UploaderFileDescription uploaderFileDescription) {
+			File file = new File(uploaderFileDescription.src);
+			try {
+				UploadSession session = UploadSession.load(context, file);
+				if (session == null) {
+					session = new UploadSession(file);
+					session.save(context, file);
+				} else {
+					session.offset = queryOffset(session);
+					metrics.counter("resumes").increment();
+					Log.v(TAG, "Resuming " + file.getName() + " at " + session.offset + " of " + session.length + " bytes.");
+				}
+				long chunkBytes = Math.max(1, transferParameters.chunkSizeKB) * 1024L;
+				while (session.offset < session.length) {
+					if (stopping == true) {
+						Log.v(TAG, "Stopping " + file.getName() + " at " + session.offset + " of " + session.length + " bytes.");
+						metrics.counter("transfersStopped").increment();
+						journal.complete(uploaderFileDescription, false);
+						return;
+					}
+					long end = Math.min(session.offset + chunkBytes, session.length) - 1;
+					HttpURLConnection connection = sessionConnection(session, uploaderFileDescription);
+					connection.setRequestProperty("Content-Range", "bytes " + session.offset + "-" + end + "/" + session.length);
+					if (uploaderFileDescription.isCompressed() == false) {
+						byte[] body = UploadSession.readRange(file, session.offset, (int) (end - session.offset + 1), true);
+						connection.setRequestProperty("Content-Encoding", "gzip");
+						connection.setFixedLengthStreamingMode(body.length);
+						OutputStream outputStream = connection.getOutputStream();
+						outputStream.write(body);
+						outputStream.close();
+					} else {
+						connection.setFixedLengthStreamingMode((int) (end - session.offset + 1));
+						OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream());
+						Util.copyMapped(file, session.offset, end - session.offset + 1, outputStream);
+						outputStream.close();
+					}
+					int responseCode = connection.getResponseCode();
+					if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
+						session.offset = session.length;
+					} else if (responseCode == UploadSession.HTTP_RESUME_INCOMPLETE) {
+						session.offset = UploadSession.committedOffset(connection, end + 1);
+						session.save(context, file);
+					} else {
+						connection.disconnect();
+						throw new HttpStatusException(responseCode);
+					}
+					connection.disconnect();
+				}
+				UploadSession.clear(context, file);
+				Log.v(TAG, "Uploaded " + uploaderFileDescription.len + " bytes successfully in session " + session.id + ". Continuing.");
+				completed(uploaderFileDescription, true);
+			} catch (Exception e) {
+				Log.w(TAG, "Resumable upload failed: " + e + ". Continuing with next file.");
+				failed(uploaderFileDescription, e);
+			}
+		}
+		
+		private HttpURLConnection sessionConnection(UploadSession session, UploaderFileDescription uploaderFileDescription) throws IOException {
+			HttpURLConnection connection = Util.getConnection(url, false, false, 0, transferParameters.connectionTimeoutSec);
+			connection.setRequestProperty(UploadSession.SESSION_HEADER, session.id);
+			if (uploaderFileDescription.isCompressed()) {
+				connection.setRequestProperty(UploadSession.CONTENT_ENCODING_HEADER, uploaderFileDescription.contentEncoding);
+			}
+			return connection;
+		}
+		
+		private long queryOffset(UploadSession session) throws Exception {
+			HttpURLConnection connection = sessionConnection(session, uploaderFileDescriptions.get(0));
+			connection.setRequestProperty("Content-Range", "bytes */" + session.length);
+			connection.setFixedLengthStreamingMode(0);
+			connection.getOutputStream().close();
+			int responseCode = connection.getResponseCode();
+			long committed = 0L;
+			if (responseCode == UploadSession.HTTP_RESUME_INCOMPLETE) {
+				committed = UploadSession.committedOffset(connection, 0L);
+			}
+			connection.disconnect();
+			if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
+				return session.length;
+			} else if (responseCode == UploadSession.HTTP_RESUME_INCOMPLETE) {
+				return committed;
+			} else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+				return 0L;
+			}
+			throw new HttpStatusException(responseCode);
+		}
+		
+		private void uploadBatch() {
+			HashSet<Integer> acknowledged = new HashSet<Integer>();
+			Exception failure = null;
+			try {
+				UploadBatch batch = new UploadBatch(uploaderFileDescriptions);
+				HttpURLConnection connection = Util.getConnection(url, true,
+						transferParameters.chunkedTransferMode, transferParameters.chunkSizeKB, transferParameters.connectionTimeoutSec);
+				connection.setRequestProperty("Content-Type", batch.contentType());
+				
+				OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream());
+				batch.write(outputStream);
+				outputStream.close();
+				
+				if (connection.getResponseCode() != 200) {
+					throw new HttpStatusException(connection.getResponseCode());
+				}
+				InputStream inputStream = connection.getInputStream();
+				acknowledged = batch.readAcknowledged(inputStream);
+				inputStream.close();
+				connection.disconnect();
+			} catch (Exception e) {
+				Log.w(TAG, "Batch upload failed: " + e + ". Continuing with next batch.");
+				failure = e;
+			}
+			for (int index = 0; index < uploaderFileDescriptions.size(); index++) {
+				if (acknowledged.contains(index)) {
+					completed(uploaderFileDescriptions.get(index), true);
+				} else if (failure != null) {
+					failed(uploaderFileDescriptions.get(index), failure);
+				} else {
+					metrics.counter("failures.batchRejected").increment();
+					completed(uploaderFileDescriptions.get(index), false);
+				}
+			}
+			Log.v(TAG, "Uploaded " + acknowledged.size() + " of " + uploaderFileDescriptions.size() + " files in batch.");
+		}
+	}
+	
+	private static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+		public HttpStatusException(int status) {
+			super("Failure error code " + status);
+			this.status = status;
+		}
+	}
+	
+
 	private boolean canUpload(UploaderParameters parameters) {
 		
 		synchronized (stateLock) {
@@ -256,13 +616,26 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 				if (((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo().isConnected() == false) {	
 					Log.v(TAG, "Network not connected.");
 					state.network = false;
+				} else {
+					state.network = true;
 				}
-				state.network = true;
 			} catch (NullPointerException e) {
 				Log.v(TAG, "No network connection.");
 				state.network = false;
 			}
 			
+			NetworkHistory link = NetworkHistory.current(context);
+			if (link != null) {
+				state.networkKey = link.key;
+				state.metered = link.metered;
+				state.linkKBps = link.kbps;
+				state.constrainedBytesToday = link.usedBytes;
+				if (link.isConstrained(parameters) && link.remainingBudget(parameters) <= 0L) {
+					Log.v(TAG, "Network " + link.key + " is metered or slow and its byte budget is used up.");
+					state.network = false;
+				}
+			}
+			
 			Log.v(TAG, "Network state is " + state.network + ". Checking for plug.");
 			
 			// 28 Sep 2012 : GWA : Do we have a plug?
@@ -337,6 +710,23 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 		Log.v(TAG, "Unregistered " + uploader.getClass().getSimpleName() + " with LoggerService.");
 	}
 
+	/*
+	 * Clients hand each file over once and hear back through complete(). The queue is
+	 * kept on disk, so files enqueued before a restart are still sent after it, once
+	 * their client has registered again.
+	 */
+	public boolean enqueue(UploaderClient uploader, UploaderFileDescription uploaderFileDescription) {
+		if (uploaderFileDescription.packagename == null) {
+			uploaderFileDescription.packagename = uploader.getClass().getName();
+		}
+		return journal.enqueue(uploader.getClass().getName(), uploaderFileDescription);
+	}
+	
+	private void complete(UploaderFileDescription uploaderFileDescription, boolean success) {
+		journal.complete(uploaderFileDescription, success);
+		uploaderFileDescription.uploader.complete(uploaderFileDescription, success);
+	}
+	
 	private ArrayList<UploaderRecord> getOrderedUploaders() {
 		ArrayList<UploaderRecord> orderedUploaders = new ArrayList<UploaderRecord>(uploaderHash.keySet());
 		Collections.sort(orderedUploaders, new Comparator<UploaderRecord>() {
@@ -357,56 +747,241 @@ public class UploaderTask extends PeriodicTask<UploaderParameters, UploaderState
 			synchronized (UploaderTask.this) {
 				orderedUploaders = UploaderTask.this.state.orderedUploaders;
 			}
-			totalBytes = 0;
-			for (UploaderRecord uploader : orderedUploaders) {
-				uploader.uploaderClient.prepare();
-				totalBytes += uploader.uploaderClient.bytesAvailable();
-			}
+			totalBytes = journal.pendingBytes();
 		}
 		
 		@Override
-		public Iterator<UploaderFileDescription> iterator() {
-			return new UploaderIterator(orderedUploaders);
+		public UploaderIterator iterator() {
+			synchronized (parameterLock) {
+				return new UploaderIterator(orderedUploaders, 1, parameters);
+			}
+		}
+		
+		public UploaderIterator iterator(int concurrentUploads, UploaderParameters retryParameters) {
+			return new UploaderIterator(orderedUploaders, concurrentUploads, retryParameters);
 		}
 		
+		/* whether an iterator would have anything to hand out, without taking from the journal */
+		public boolean waiting(UploaderParameters currentParameters) {
+			long now = System.currentTimeMillis();
+			for (UploaderRecord uploader : orderedUploaders) {
+				if (retryPolicy.isOpen(uploader.uploaderClient, currentParameters, 0, now) ||
+						fairShare.overQuota(uploader.name, currentParameters.shareFor(uploader))) {
+					continue;
+				}
+				for (String src : journal.pending(uploader.name)) {
+					if (retryPolicy.isDeferred(src, currentParameters, now) == false) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		/*
+		 * Clients are served in weighted fair order, ties going to the higher priority, and
+		 * while several of them are active none may hold more than its weighted share of the
+		 * transfer slots. A client sent less than its guaranteed minKBps since the iterator
+		 * was created goes ahead of the others, and a client over today's quota is passed
+		 * over. Files that are still backing off are taken from their client and held, so the
+		 * files behind them go first, and clients whose circuit is open are passed over.
+		 * Whatever is held goes back to the journal on release().
+		 */
 		public class UploaderIterator implements Iterator<UploaderFileDescription> {
-			private Integer position;
 			private ArrayList<UploaderRecord> orderedUploaders;
+			private HashMap<UploaderClient, Integer> inFlight;
+			private int concurrentUploads;
+			private UploaderParameters currentParameters;
+			private HashMap<UploaderClient, UploaderFileDescription> peeked;
+			private ArrayList<UploaderFileDescription> deferred;
+			private HashMap<UploaderClient, Long> dispatched;
+			private long created;
 			
-			public UploaderIterator(ArrayList<UploaderRecord> orderedUploaders) {
-				this.position = 0;
+			public UploaderIterator(ArrayList<UploaderRecord> orderedUploaders, int concurrentUploads, UploaderParameters currentParameters) {
 				this.orderedUploaders = orderedUploaders;
+				this.inFlight = new HashMap<UploaderClient, Integer>();
+				this.concurrentUploads = concurrentUploads;
+				this.currentParameters = currentParameters;
+				this.peeked = new HashMap<UploaderClient, UploaderFileDescription>();
+				this.deferred = new ArrayList<UploaderFileDescription>();
+				this.dispatched = new HashMap<UploaderClient, Long>();
+				this.created = SystemClock.elapsedRealtime();
+			}
+			
+			private int inFlight(UploaderRecord uploader) {
+				Integer count = inFlight.get(uploader.uploaderClient);
+				return (count == null) ? 0 : count;
+			}
+			
+			private long dispatched(UploaderRecord uploader) {
+				Long bytes = dispatched.get(uploader.uploaderClient);
+				return (bytes == null) ? 0L : bytes;
+			}
+			
+			private UploaderRecord nextUploader() {
+				ArrayList<UploaderRecord> waitingUploaders = new ArrayList<UploaderRecord>();
+				long activeWeight = 0L;
+				for (UploaderRecord uploader : orderedUploaders) {
+					boolean waiting = waiting(uploader);
+					if (waiting == true) {
+						waitingUploaders.add(uploader);
+					}
+					if (waiting == true || inFlight(uploader) > 0) {
+						activeWeight += currentParameters.shareFor(uploader).getWeight();
+					}
+				}
+				if (waitingUploaders.isEmpty()) {
+					return null;
+				}
+				long elapsedMS = Math.max(1000L, SystemClock.elapsedRealtime() - created);
+				UploaderRecord next = null;
+				boolean nextLagging = false;
+				double nextCharge = 0.0;
+				for (UploaderRecord uploader : waitingUploaders) {
+					UploaderShare share = currentParameters.shareFor(uploader);
+					long slots = Math.max(1L, (concurrentUploads * share.getWeight() + activeWeight - 1) / activeWeight);
+					if (inFlight(uploader) >= slots) {
+						continue;
+					}
+					boolean lagging = dispatched(uploader) * 1000L < share.getMinBytesPerSec() * elapsedMS;
+					double charge = fairShare.charge(uploader.name);
+					if (next == null || (lagging == true && nextLagging == false) ||
+							(lagging == nextLagging && charge < nextCharge)) {
+						next = uploader;
+						nextLagging = lagging;
+						nextCharge = charge;
+					}
+				}
+				return next;
+			}
+			
+			private void dispatch(UploaderRecord uploader, long bytes) {
+				inFlight.put(uploader.uploaderClient, inFlight(uploader) + 1);
+				dispatched.put(uploader.uploaderClient, dispatched(uploader) + bytes);
+				fairShare.dispatched(uploader.name, bytes, currentParameters.shareFor(uploader).getWeight());
 			}
 				
 			@Override
 			public boolean hasNext() {
-				if (position == orderedUploaders.size()) {
+				return (nextUploader() != null);
+			}
+
+			@Override
+			public UploaderFileDescription next() {
+				UploaderRecord uploader = nextUploader();
+				if (uploader == null) {
+					throw new NoSuchElementException();
+				}
+				UploaderFileDescription next = next(uploader);
+				dispatch(uploader, next.len);
+				return next;
+			}
+			
+			private boolean waiting(UploaderRecord uploader) {
+				UploaderClient client = uploader.uploaderClient;
+				long now = System.currentTimeMillis();
+				if (retryPolicy.isOpen(client, currentParameters, inFlight(uploader), now)) {
 					return false;
 				}
-				for ( ; position < orderedUploaders.size(); position++) {
-					if (orderedUploaders.get(position).uploaderClient.hasNext() == true) {
+				if (fairShare.overQuota(uploader.name, currentParameters.shareFor(uploader))) {
+					return false;
+				}
+				if (peeked.containsKey(client)) {
+					return true;
+				}
+				String name = client.getClass().getName();
+				while (journal.hasNext(name)) {
+					UploaderFileDescription next = journal.next(name);
+					if (next == null) {
+						return false;
+					}
+					next.uploader = client;
+					if (next.packagename == null) {
+						next.packagename = next.uploader.getClass().getName();
+					}
+					if (retryPolicy.isDeferred(next, currentParameters, now)) {
+						deferred.add(next);
+					} else {
+						peeked.put(client, next);
 						return true;
 					}
 				}
 				return false;
 			}
-
-			@Override
-			public UploaderFileDescription next() {
-				if (hasNext() == false) {
-					throw new NoSuchElementException();
-				}	
-				UploaderFileDescription next = orderedUploaders.get(position).uploaderClient.next();	
+			
+			private UploaderFileDescription next(UploaderRecord uploader) {
+				UploaderFileDescription next = peeked.remove(uploader.uploaderClient);
 				if (next == null) {
 					throw new NoSuchElementException();
 				}
-				next.uploader = orderedUploaders.get(position).uploaderClient;
-				
-				if (next.packagename == null) {
-					next.packagename = next.uploader.getClass().getName();
-				}
 				return next;
 			}
+			
+			/*
+			 * Keeps taking files from the same client until the batch reaches batchBytes, so
+			 * the last member may carry it past the cap. A batch uses a single transfer slot.
+			 */
+			public ArrayList<UploaderFileDescription> nextBatch(long batchBytes) {
+				UploaderRecord uploader = nextUploader();
+				if (uploader == null) {
+					throw new NoSuchElementException();
+				}
+				ArrayList<UploaderFileDescription> batch = new ArrayList<UploaderFileDescription>();
+				long total = 0L;
+				do {
+					UploaderFileDescription next = next(uploader);
+					batch.add(next);
+					total += next.len;
+				} while (total < batchBytes && waiting(uploader));
+				dispatch(uploader, total);
+				return batch;
+			}
+			
+			public void completed(UploaderClient uploaderClient) {
+				Integer count = inFlight.get(uploaderClient);
+				if (count != null && count > 0) {
+					inFlight.put(uploaderClient, count - 1);
+				}
+			}
+			
+			/*
+			 * Held files were never attempted, so they only go back to the journal and not to
+			 * their clients. Each is put back at the front, so the last taken goes back first.
+			 */
+			public void release() {
+				deferred.addAll(peeked.values());
+				peeked.clear();
+				for (int index = deferred.size() - 1; index >= 0; index--) {
+					journal.complete(deferred.get(index), false);
+				}
+				deferred.clear();
+			}
+			
+			/* call after release(), so that held files count as backlog again */
+			public ArrayList<ClientShare> shares() {
+				long totalWeight = 0L;
+				long totalDispatched = 0L;
+				for (UploaderRecord uploader : orderedUploaders) {
+					if (journal.hasNext(uploader.name)) {
+						totalWeight += currentParameters.shareFor(uploader).getWeight();
+					}
+					totalDispatched += dispatched(uploader);
+				}
+				ArrayList<ClientShare> shares = new ArrayList<ClientShare>();
+				for (UploaderRecord uploader : orderedUploaders) {
+					UploaderShare share = currentParameters.shareFor(uploader);
+					ClientShare clientShare = new ClientShare();
+					clientShare.name = uploader.name;
+					clientShare.weight = share.getWeight();
+					clientShare.backlogFiles = journal.pendingFiles(uploader.name);
+					clientShare.backlogBytes = journal.pendingBytes(uploader.name);
+					clientShare.entitledPercent = (clientShare.backlogFiles == 0 || totalWeight == 0L) ? 0 : (int) (100L * share.getWeight() / totalWeight);
+					clientShare.servedPercent = (totalDispatched == 0L) ? 0 : (int) (100L * dispatched(uploader) / totalDispatched);
+					clientShare.usedBytesToday = fairShare.usedBytes(uploader.name);
+					shares.add(clientShare);
+				}
+				return shares;
+			}
 
 			@Override
 			public void remove() { 
@@ -438,6 +1013,497 @@ class UploaderRecord {
 	}
 }
 
+/*
+ * Upload history for each network, keyed by network type and extra info (the SSID on
+ * Wi-Fi, the APN on mobile) and kept in shared preferences as "kbps samples lastSeen day
+ * usedBytes". kbps is an exponentially weighted average of whole upload runs. usedBytes
+ * counts what was sent today while the network was metered or slow.
+ */
+class NetworkHistory {
+	
+	public static final String PREFERENCES_NAME = "UploaderNetworks";
+	private static final long MIN_SAMPLE_BYTES = 64 * 1024L;
+	private static final long SLOW_CHECK_MS = 30 * 1000L;
+	private static final long EXPIRY_MS = 30 * AlarmManager.INTERVAL_DAY;
+	
+	String key;
+	boolean metered;
+	boolean slow;
+	long kbps;
+	int samples;
+	long lastSeen;
+	long day;
+	long usedBytes;
+	long runBytes;
+	
+	private NetworkHistory(String key) {
+		this.key = key;
+		this.metered = false;
+		this.slow = false;
+		this.kbps = 0L;
+		this.samples = 0;
+		this.usedBytes = 0L;
+		this.runBytes = 0L;
+	}
+	
+	public static NetworkHistory current(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		if (networkInfo == null || networkInfo.isConnected() == false) {
+			return null;
+		}
+		String extraInfo = networkInfo.getExtraInfo();
+		NetworkHistory history = new NetworkHistory(networkInfo.getTypeName() + "/" + (extraInfo == null ? "" : extraInfo));
+		String record = context.getSharedPreferences(PREFERENCES_NAME, 0).getString(history.key, null);
+		if (record != null) {
+			try {
+				String[] fields = record.split(" ");
+				history.kbps = Long.parseLong(fields[0]);
+				history.samples = Integer.parseInt(fields[1]);
+				history.lastSeen = Long.parseLong(fields[2]);
+				history.day = Long.parseLong(fields[3]);
+				history.usedBytes = Long.parseLong(fields[4]);
+			} catch (Exception e) {
+				history = new NetworkHistory(history.key);
+			}
+		}
+		long today = System.currentTimeMillis() / AlarmManager.INTERVAL_DAY;
+		if (history.day != today) {
+			history.day = today;
+			history.usedBytes = 0L;
+		}
+		history.metered = connectivityManager.isActiveNetworkMetered();
+		return history;
+	}
+	
+	public void save(Context context) {
+		lastSeen = System.currentTimeMillis();
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
+		editor.putString(key, kbps + " " + samples + " " + lastSeen + " " + day + " " + usedBytes);
+		editor.commit();
+	}
+	
+	public boolean isConstrained(UploaderParameters parameters) {
+		int slowLinkKBps = parameters.getSlowLinkKBps();
+		return metered || slow || (slowLinkKBps > 0 && samples > 0 && kbps < slowLinkKBps);
+	}
+	
+	public long remainingBudget(UploaderParameters parameters) {
+		long budget = parameters.getConstrainedBudgetBytes();
+		if (budget == Long.MAX_VALUE) {
+			return budget;
+		}
+		return Math.max(0L, budget - usedBytes);
+	}
+	
+	/* a run that has not reached slowLinkKBps after SLOW_CHECK_MS is treated as slow from then on */
+	public void transferred(long bytes, long elapsedMS, UploaderParameters parameters) {
+		runBytes += bytes;
+		if (isConstrained(parameters)) {
+			usedBytes += bytes;
+		}
+		int slowLinkKBps = parameters.getSlowLinkKBps();
+		if (slow == false && slowLinkKBps > 0 && elapsedMS >= SLOW_CHECK_MS &&
+				runBytes * 1000L / 1024L / elapsedMS < slowLinkKBps) {
+			slow = true;
+		}
+	}
+	
+	/* the newest run counts for a third, runs too small to measure are skipped */
+	public void sample(long elapsedMS) {
+		if (runBytes < MIN_SAMPLE_BYTES || elapsedMS <= 0L) {
+			return;
+		}
+		long runKBps = runBytes * 1000L / 1024L / elapsedMS;
+		kbps = (samples == 0) ? runKBps : (2 * kbps + runKBps) / 3;
+		samples++;
+	}
+	
+	public static void prune(Context context) {
+		SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+		SharedPreferences.Editor editor = sharedPreferences.edit();
+		long now = System.currentTimeMillis();
+		for (HashMap.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+			try {
+				if (now - Long.parseLong(((String) entry.getValue()).split(" ")[2]) > EXPIRY_MS) {
+					editor.remove(entry.getKey());
+				}
+			} catch (Exception e) {
+				editor.remove(entry.getKey());
+			}
+		}
+		editor.commit();
+	}
+}
+
+/*
+ * Failure history for files and clients, kept across runs in shared preferences. A file
+ * that failed n times in a row waits retryBaseSec * 2^(n-1), capped at retryMaxSec, of
+ * which a random half is taken off so that devices do not retry in step; after
+ * quarantineFailures it is tried only once a day. A client that failed breakerFailures
+ * times in a row is skipped for the same backoff and then gets a single trial transfer
+ * whose outcome closes or reopens it. Updates stay in memory until save().
+ */
+class RetryPolicy {
+	
+	public static final String PREFERENCES_NAME = "UploaderRetries";
+	private static final String FILE_PREFIX = "file:";
+	private static final String CLIENT_PREFIX = "client:";
+	private static final long QUARANTINE_MS = AlarmManager.INTERVAL_DAY;
+	
+	private final Context context;
+	private final Random random;
+	/* failures and next attempt for each file path */
+	private final HashMap<String, long[]> files;
+	/* consecutive failures and end of the open period for each client class */
+	private final HashMap<String, long[]> clients;
+	private boolean dirty;
+	
+	public RetryPolicy(Context context) {
+		this.context = context;
+		this.random = new Random();
+		this.files = new HashMap<String, long[]>();
+		this.clients = new HashMap<String, long[]>();
+		for (HashMap.Entry<String, ?> entry : context.getSharedPreferences(PREFERENCES_NAME, 0).getAll().entrySet()) {
+			try {
+				String[] fields = ((String) entry.getValue()).split(" ");
+				long[] record = new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) };
+				if (entry.getKey().startsWith(FILE_PREFIX)) {
+					files.put(entry.getKey().substring(FILE_PREFIX.length()), record);
+				} else if (entry.getKey().startsWith(CLIENT_PREFIX)) {
+					clients.put(entry.getKey().substring(CLIENT_PREFIX.length()), record);
+				}
+			} catch (Exception e) {
+				dirty = true;
+			}
+		}
+	}
+	
+	public boolean isDeferred(UploaderFileDescription uploaderFileDescription, UploaderParameters parameters, long now) {
+		return isDeferred(uploaderFileDescription.src, parameters, now);
+	}
+	
+	public synchronized boolean isDeferred(String src, UploaderParameters parameters, long now) {
+		if (parameters.getRetryBaseMS() <= 0L) {
+			return false;
+		}
+		long[] record = files.get(src);
+		return record != null && now < record[1];
+	}
+	
+	/* half open: once the period is over only one transfer at a time until a success */
+	public synchronized boolean isOpen(UploaderClient uploaderClient, UploaderParameters parameters, int inFlight, long now) {
+		int breakerFailures = parameters.getBreakerFailures();
+		if (parameters.getRetryBaseMS() <= 0L || breakerFailures <= 0) {
+			return false;
+		}
+		long[] record = clients.get(uploaderClient.getClass().getName());
+		if (record == null || record[0] < breakerFailures) {
+			return false;
+		}
+		return now < record[1] || inFlight > 0;
+	}
+	
+	public synchronized void record(UploaderFileDescription uploaderFileDescription, boolean success, UploaderParameters parameters) {
+		String client = uploaderFileDescription.uploader.getClass().getName();
+		if (success == true) {
+			if (files.remove(uploaderFileDescription.src) != null) {
+				dirty = true;
+			}
+			if (clients.remove(client) != null) {
+				dirty = true;
+			}
+			return;
+		}
+		if (parameters.getRetryBaseMS() <= 0L) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long[] record = files.get(uploaderFileDescription.src);
+		if (record == null) {
+			record = new long[2];
+			files.put(uploaderFileDescription.src, record);
+		}
+		record[0]++;
+		int quarantineFailures = parameters.getQuarantineFailures();
+		if (quarantineFailures > 0 && record[0] >= quarantineFailures) {
+			record[1] = now + QUARANTINE_MS;
+		} else {
+			record[1] = now + backoff(record[0], parameters);
+		}
+		int breakerFailures = parameters.getBreakerFailures();
+		if (breakerFailures > 0) {
+			record = clients.get(client);
+			if (record == null) {
+				record = new long[2];
+				clients.put(client, record);
+			}
+			record[0]++;
+			if (record[0] >= breakerFailures) {
+				record[1] = now + backoff(record[0] - breakerFailures + 1, parameters);
+			}
+		}
+		dirty = true;
+	}
+	
+	private long backoff(long failures, UploaderParameters parameters) {
+		long delay = Math.min(parameters.getRetryMaxMS(), parameters.getRetryBaseMS() << Math.min(failures - 1, 30L));
+		return delay - (long) (random.nextDouble() * (delay / 2));
+	}
+	
+	public synchronized int deferredFiles(long now) {
+		int count = 0;
+		for (long[] record : files.values()) {
+			if (now < record[1]) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public synchronized int quarantinedFiles(UploaderParameters parameters) {
+		int quarantineFailures = parameters.getQuarantineFailures();
+		if (quarantineFailures <= 0) {
+			return 0;
+		}
+		int count = 0;
+		for (long[] record : files.values()) {
+			if (record[0] >= quarantineFailures) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public synchronized int openClients(long now) {
+		int count = 0;
+		for (long[] record : clients.values()) {
+			if (now < record[1]) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/* forgets files that have since been deleted */
+	public synchronized void prune() {
+		Iterator<String> paths = files.keySet().iterator();
+		while (paths.hasNext()) {
+			if (new File(paths.next()).exists() == false) {
+				paths.remove();
+				dirty = true;
+			}
+		}
+		save();
+	}
+	
+	public synchronized void save() {
+		if (dirty == false) {
+			return;
+		}
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
+		editor.clear();
+		for (HashMap.Entry<String, long[]> entry : files.entrySet()) {
+			editor.putString(FILE_PREFIX + entry.getKey(), entry.getValue()[0] + " " + entry.getValue()[1]);
+		}
+		for (HashMap.Entry<String, long[]> entry : clients.entrySet()) {
+			editor.putString(CLIENT_PREFIX + entry.getKey(), entry.getValue()[0] + " " + entry.getValue()[1]);
+		}
+		editor.commit();
+		dirty = false;
+	}
+}
+
+/*
+ * Weighted fair sharing of the uploader between clients. A client is charged the bytes it
+ * is handed divided by its weight and the waiting client with the lowest charge goes next,
+ * so clients with files waiting receive bytes in proportion to their weights however
+ * large their backlogs. A client that was idle starts again from the charge of the last
+ * client served instead of from where it stopped. Successful bytes are also counted
+ * against each client's daily quota, kept in shared preferences as "day usedBytes".
+ */
+class FairShare {
+	
+	public static final String PREFERENCES_NAME = "UploaderShares";
+	
+	private final Context context;
+	private final HashMap<String, Double> charges;
+	/* day and bytes uploaded that day for each client class */
+	private final HashMap<String, long[]> usage;
+	private double virtualTime;
+	private boolean dirty;
+	
+	public FairShare(Context context) {
+		this.context = context;
+		this.charges = new HashMap<String, Double>();
+		this.usage = new HashMap<String, long[]>();
+		this.virtualTime = 0.0;
+		long today = today();
+		for (HashMap.Entry<String, ?> entry : context.getSharedPreferences(PREFERENCES_NAME, 0).getAll().entrySet()) {
+			try {
+				String[] fields = ((String) entry.getValue()).split(" ");
+				long[] record = new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) };
+				if (record[0] == today) {
+					usage.put(entry.getKey(), record);
+				} else {
+					dirty = true;
+				}
+			} catch (Exception e) {
+				dirty = true;
+			}
+		}
+	}
+	
+	private static long today() {
+		return System.currentTimeMillis() / AlarmManager.INTERVAL_DAY;
+	}
+	
+	public synchronized double charge(String client) {
+		Double charge = charges.get(client);
+		return (charge == null) ? virtualTime : Math.max(charge, virtualTime);
+	}
+	
+	public synchronized void dispatched(String client, long bytes, int weight) {
+		double charge = charge(client);
+		virtualTime = charge;
+		charges.put(client, charge + (double) bytes / weight);
+	}
+	
+	public synchronized long usedBytes(String client) {
+		long[] record = usage.get(client);
+		return (record == null || record[0] != today()) ? 0L : record[1];
+	}
+	
+	public synchronized boolean overQuota(String client, UploaderShare share) {
+		return usedBytes(client) >= share.getQuotaBytes();
+	}
+	
+	public synchronized void uploaded(String client, long bytes) {
+		long today = today();
+		long[] record = usage.get(client);
+		if (record == null || record[0] != today) {
+			record = new long[] { today, 0L };
+			usage.put(client, record);
+		}
+		record[1] += bytes;
+		dirty = true;
+	}
+	
+	public synchronized void save() {
+		if (dirty == false) {
+			return;
+		}
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
+		editor.clear();
+		long today = today();
+		for (HashMap.Entry<String, long[]> entry : usage.entrySet()) {
+			if (entry.getValue()[0] == today) {
+				editor.putString(entry.getKey(), entry.getValue()[0] + " " + entry.getValue()[1]);
+			}
+		}
+		editor.commit();
+		dirty = false;
+	}
+}
+
+class UploadSession {
+	
+	public static final String PREFERENCES_NAME = "UploaderSessions";
+	public static final String SESSION_HEADER = "X-Upload-Session";
+	public static final String CONTENT_ENCODING_HEADER = "X-Upload-Content-Encoding";
+	public static final int HTTP_RESUME_INCOMPLETE = 308;
+	
+	String id;
+	long offset;
+	long length;
+	long modified;
+	
+	public UploadSession(File file) {
+		this.id = Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime());
+		this.offset = 0L;
+		this.length = file.length();
+		this.modified = file.lastModified();
+	}
+	
+	private UploadSession(String record) {
+		String[] fields = record.split(" ");
+		this.id = fields[0];
+		this.offset = Long.parseLong(fields[1]);
+		this.length = Long.parseLong(fields[2]);
+		this.modified = Long.parseLong(fields[3]);
+	}
+	
+	/* sessions for files that changed since they were opened are discarded */
+	public static UploadSession load(Context context, File file) {
+		String record = context.getSharedPreferences(PREFERENCES_NAME, 0).getString(file.getAbsolutePath(), null);
+		if (record == null) {
+			return null;
+		}
+		try {
+			UploadSession session = new UploadSession(record);
+			if (session.length == file.length() && session.modified == file.lastModified()) {
+				return session;
+			}
+		} catch (Exception e) { }
+		clear(context, file);
+		return null;
+	}
+	
+	public void save(Context context, File file) {
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
+		editor.putString(file.getAbsolutePath(), id + " " + offset + " " + length + " " + modified);
+		editor.commit();
+	}
+	
+	public static void clear(Context context, File file) {
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
+		editor.remove(file.getAbsolutePath());
+		editor.commit();
+	}
+	
+	public static void prune(Context context) {
+		SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+		SharedPreferences.Editor editor = sharedPreferences.edit();
+		for (String path : sharedPreferences.getAll().keySet()) {
+			if (new File(path).exists() == false) {
+				editor.remove(path);
+			}
+		}
+		editor.commit();
+	}
+	
+	public static long committedOffset(HttpURLConnection connection, long fallback) {
+		String range = connection.getHeaderField("Range");
+		if (range == null) {
+			return fallback;
+		}
+		try {
+			return Long.parseLong(range.substring(range.lastIndexOf('-') + 1).trim()) + 1;
+		} catch (Exception e) {
+			return fallback;
+		}
+	}
+	
+	public static byte[] readRange(File file, long offset, int count, boolean gzip) throws IOException {
+		byte[] buffer = new byte[count];
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			randomAccessFile.seek(offset);
+			randomAccessFile.readFully(buffer);
+		} finally {
+			randomAccessFile.close();
+		}
+		if (gzip == false) {
+			return buffer;
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(count / 4);
+		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+		gzipOutputStream.write(buffer);
+		gzipOutputStream.close();
+		return compressed.toByteArray();
+	}
+}
+
 @Root(name="LoggerService")
 class UploaderParameters extends PeriodicParameters {
 	
@@ -459,6 +1525,39 @@ class UploaderParameters extends PeriodicParameters {
 	@Element
 	public Integer chunkSizeKB;
 	
+	@Element(required=false)
+	public Integer concurrentUploads;
+	
+	@Element(required=false)
+	public Integer batchSizeKB;
+	
+	@Element(required=false)
+	public Integer resumableThresholdKB;
+	
+	@Element(required=false)
+	public Boolean adaptive;
+	
+	@Element(required=false)
+	public Integer slowLinkKBps;
+	
+	@Element(required=false)
+	public Integer constrainedBudgetKB;
+	
+	@Element(required=false)
+	public Integer retryBaseSec;
+	
+	@Element(required=false)
+	public Integer retryMaxSec;
+	
+	@Element(required=false)
+	public Integer quarantineFailures;
+	
+	@Element(required=false)
+	public Integer breakerFailures;
+	
+	@ElementList(type=UploaderShare.class, entry="share", required=false)
+	public HashSet<UploaderShare> shares;
+	
 	public UploaderParameters() {
 		super();
 		checkInterval = AlarmManager.INTERVAL_FIFTEEN_MINUTES / 1000L;
@@ -468,6 +1567,17 @@ class UploaderParameters extends PeriodicParameters {
 		failureCount = 8;
 		chunkedTransferMode = false;
 		chunkSizeKB = 32;
+		concurrentUploads = 1;
+		batchSizeKB = 0;
+		resumableThresholdKB = 0;
+		adaptive = false;
+		slowLinkKBps = 0;
+		constrainedBudgetKB = -1;
+		retryBaseSec = 0;
+		retryMaxSec = 6 * 60 * 60;
+		quarantineFailures = 0;
+		breakerFailures = 0;
+		shares = new HashSet<UploaderShare>();
 	}
 	
 	public UploaderParameters(UploaderParameters parameters) {
@@ -478,6 +1588,177 @@ class UploaderParameters extends PeriodicParameters {
 		failureCount = parameters.failureCount;
 		chunkedTransferMode = parameters.chunkedTransferMode;
 		chunkSizeKB = parameters.chunkSizeKB;
+		concurrentUploads = parameters.concurrentUploads;
+		batchSizeKB = parameters.batchSizeKB;
+		resumableThresholdKB = parameters.resumableThresholdKB;
+		adaptive = parameters.adaptive;
+		slowLinkKBps = parameters.slowLinkKBps;
+		constrainedBudgetKB = parameters.constrainedBudgetKB;
+		retryBaseSec = parameters.retryBaseSec;
+		retryMaxSec = parameters.retryMaxSec;
+		quarantineFailures = parameters.quarantineFailures;
+		breakerFailures = parameters.breakerFailures;
+		shares = new HashSet<UploaderShare>(parameters.shares);
+	}
+	
+	@Override
+	public void writeFields(DataOutput out) throws IOException {
+		super.writeFields(out);
+		ParameterStore.writeInteger(out, connectionTimeoutSec);
+		ParameterStore.writeString(out, loggerURL);
+		ParameterStore.writeString(out, powerpolicy);
+		ParameterStore.writeInteger(out, failureCount);
+		ParameterStore.writeBoolean(out, chunkedTransferMode);
+		ParameterStore.writeInteger(out, chunkSizeKB);
+		ParameterStore.writeInteger(out, concurrentUploads);
+		ParameterStore.writeInteger(out, batchSizeKB);
+		ParameterStore.writeInteger(out, resumableThresholdKB);
+		ParameterStore.writeBoolean(out, adaptive);
+		ParameterStore.writeInteger(out, slowLinkKBps);
+		ParameterStore.writeInteger(out, constrainedBudgetKB);
+		ParameterStore.writeInteger(out, retryBaseSec);
+		ParameterStore.writeInteger(out, retryMaxSec);
+		ParameterStore.writeInteger(out, quarantineFailures);
+		ParameterStore.writeInteger(out, breakerFailures);
+		out.writeInt(shares.size());
+		for (UploaderShare share : shares) {
+			ParameterStore.writeString(out, share.name);
+			ParameterStore.writeInteger(out, share.priority);
+			ParameterStore.writeInteger(out, share.weight);
+			ParameterStore.writeInteger(out, share.quotaKB);
+			ParameterStore.writeInteger(out, share.minKBps);
+		}
+	}
+	
+	@Override
+	public void readFields(DataInput in, int version) throws IOException {
+		super.readFields(in, version);
+		connectionTimeoutSec = ParameterStore.readInteger(in);
+		loggerURL = ParameterStore.readString(in);
+		powerpolicy = ParameterStore.readString(in);
+		failureCount = ParameterStore.readInteger(in);
+		chunkedTransferMode = ParameterStore.readBoolean(in);
+		chunkSizeKB = ParameterStore.readInteger(in);
+		concurrentUploads = ParameterStore.readInteger(in);
+		batchSizeKB = ParameterStore.readInteger(in);
+		resumableThresholdKB = ParameterStore.readInteger(in);
+		if (version >= 4) {
+			adaptive = ParameterStore.readBoolean(in);
+			slowLinkKBps = ParameterStore.readInteger(in);
+			constrainedBudgetKB = ParameterStore.readInteger(in);
+		}
+		if (version >= 5) {
+			retryBaseSec = ParameterStore.readInteger(in);
+			retryMaxSec = ParameterStore.readInteger(in);
+			quarantineFailures = ParameterStore.readInteger(in);
+			breakerFailures = ParameterStore.readInteger(in);
+		}
+		shares = new HashSet<UploaderShare>();
+		if (version >= 7) {
+			for (int count = in.readInt(); count > 0; count--) {
+				shares.add(new UploaderShare(ParameterStore.readString(in), ParameterStore.readInteger(in),
+						ParameterStore.readInteger(in), ParameterStore.readInteger(in), ParameterStore.readInteger(in)));
+			}
+		}
+	}
+	
+	public int getConcurrentUploads() {
+		if (concurrentUploads == null || concurrentUploads < 1) {
+			return 1;
+		}
+		return concurrentUploads;
+	}
+	
+	public long getBatchBytes() {
+		if (batchSizeKB == null || batchSizeKB < 0) {
+			return 0L;
+		}
+		return batchSizeKB * 1024L;
+	}
+	
+	public int getSlowLinkKBps() {
+		if (slowLinkKBps == null || slowLinkKBps < 0) {
+			return 0;
+		}
+		return slowLinkKBps;
+	}
+	
+	/* negative means no budget */
+	public long getConstrainedBudgetBytes() {
+		if (constrainedBudgetKB == null || constrainedBudgetKB < 0) {
+			return Long.MAX_VALUE;
+		}
+		return constrainedBudgetKB * 1024L;
+	}
+	
+	private static final long KBPS_PER_TRANSFER = 32L;
+	private static final long SECONDS_PER_PIECE = 4L;
+	private static final int MIN_ADAPTIVE_CHUNK_KB = 16;
+	
+	/*
+	 * With adaptive set, concurrency and the piece size are capped by what the network
+	 * has been delivering: one transfer per KBPS_PER_TRANSFER and pieces that take about
+	 * SECONDS_PER_PIECE to send. The configured values remain the upper bounds.
+	 */
+	public UploaderParameters adaptTo(NetworkHistory link) {
+		if (adaptive == null || adaptive == false || link == null || link.samples == 0) {
+			return this;
+		}
+		UploaderParameters adapted = new UploaderParameters(this);
+		adapted.concurrentUploads = (int) Math.max(1L, Math.min(getConcurrentUploads(), link.kbps / KBPS_PER_TRANSFER));
+		adapted.chunkSizeKB = (int) Math.max(MIN_ADAPTIVE_CHUNK_KB, Math.min(chunkSizeKB, link.kbps * SECONDS_PER_PIECE));
+		return adapted;
+	}
+	
+	/* zero turns backoff, quarantine and the circuit breaker off */
+	public long getRetryBaseMS() {
+		if (retryBaseSec == null || retryBaseSec < 0) {
+			return 0L;
+		}
+		return retryBaseSec * 1000L;
+	}
+	
+	public long getRetryMaxMS() {
+		if (retryMaxSec == null || retryMaxSec * 1000L < getRetryBaseMS()) {
+			return getRetryBaseMS();
+		}
+		return retryMaxSec * 1000L;
+	}
+	
+	public int getQuarantineFailures() {
+		if (quarantineFailures == null || quarantineFailures < 0) {
+			return 0;
+		}
+		return quarantineFailures;
+	}
+	
+	public int getBreakerFailures() {
+		if (breakerFailures == null || breakerFailures < 0) {
+			return 0;
+		}
+		return breakerFailures;
+	}
+	
+	private static final UploaderShare DEFAULT_SHARE = new UploaderShare();
+	
+	/* a share naming the client wins over one for its priority */
+	public UploaderShare shareFor(UploaderRecord uploader) {
+		UploaderShare priorityShare = DEFAULT_SHARE;
+		for (UploaderShare share : shares) {
+			if (share.name != null && share.name.equals(uploader.name)) {
+				return share;
+			} else if (share.name == null && share.priority != null && share.priority.equals(uploader.priority)) {
+				priorityShare = share;
+			}
+		}
+		return priorityShare;
+	}
+	
+	public boolean isResumable(long length) {
+		if (resumableThresholdKB == null || resumableThresholdKB <= 0) {
+			return false;
+		}
+		return length >= resumableThresholdKB * 1024L;
 	}
 	
 	@Override
@@ -486,8 +1767,15 @@ class UploaderParameters extends PeriodicParameters {
 				+ connectionTimeoutSec + ", loggerURL=" + loggerURL
 				+ ", powerpolicy=" + powerpolicy + ", failureCount="
 				+ failureCount + ", chunkedTransferMode=" + chunkedTransferMode
-				+ ", chunkSizeKB=" + chunkSizeKB + ", checkInterval="
-				+ checkInterval + "]";
+				+ ", chunkSizeKB=" + chunkSizeKB + ", concurrentUploads="
+				+ concurrentUploads + ", batchSizeKB=" + batchSizeKB
+				+ ", resumableThresholdKB=" + resumableThresholdKB
+				+ ", adaptive=" + adaptive + ", slowLinkKBps=" + slowLinkKBps
+				+ ", constrainedBudgetKB=" + constrainedBudgetKB
+				+ ", retryBaseSec=" + retryBaseSec + ", retryMaxSec=" + retryMaxSec
+				+ ", quarantineFailures=" + quarantineFailures
+				+ ", breakerFailures=" + breakerFailures + ", shares=" + shares
+				+ ", checkInterval=" + checkInterval + "]";
 	}
 	@Override
 	public int hashCode() {
@@ -509,6 +1797,28 @@ class UploaderParameters extends PeriodicParameters {
 				+ ((loggerURL == null) ? 0 : loggerURL.hashCode());
 		result = prime * result
 				+ ((powerpolicy == null) ? 0 : powerpolicy.hashCode());
+		result = prime * result
+				+ ((concurrentUploads == null) ? 0 : concurrentUploads.hashCode());
+		result = prime * result
+				+ ((batchSizeKB == null) ? 0 : batchSizeKB.hashCode());
+		result = prime * result
+				+ ((resumableThresholdKB == null) ? 0 : resumableThresholdKB.hashCode());
+		result = prime * result
+				+ ((adaptive == null) ? 0 : adaptive.hashCode());
+		result = prime * result
+				+ ((slowLinkKBps == null) ? 0 : slowLinkKBps.hashCode());
+		result = prime * result
+				+ ((constrainedBudgetKB == null) ? 0 : constrainedBudgetKB.hashCode());
+		result = prime * result
+				+ ((retryBaseSec == null) ? 0 : retryBaseSec.hashCode());
+		result = prime * result
+				+ ((retryMaxSec == null) ? 0 : retryMaxSec.hashCode());
+		result = prime * result
+				+ ((quarantineFailures == null) ? 0 : quarantineFailures.hashCode());
+		result = prime * result
+				+ ((breakerFailures == null) ? 0 : breakerFailures.hashCode());
+		result = prime * result
+				+ ((shares == null) ? 0 : shares.hashCode());
 		return result;
 	}
 	@Override
@@ -550,6 +1860,175 @@ class UploaderParameters extends PeriodicParameters {
 				return false;
 		} else if (!powerpolicy.equals(other.powerpolicy))
 			return false;
+		if (concurrentUploads == null) {
+			if (other.concurrentUploads != null)
+				return false;
+		} else if (!concurrentUploads.equals(other.concurrentUploads))
+			return false;
+		if (batchSizeKB == null) {
+			if (other.batchSizeKB != null)
+				return false;
+		} else if (!batchSizeKB.equals(other.batchSizeKB))
+			return false;
+		if (resumableThresholdKB == null) {
+			if (other.resumableThresholdKB != null)
+				return false;
+		} else if (!resumableThresholdKB.equals(other.resumableThresholdKB))
+			return false;
+		if (adaptive == null) {
+			if (other.adaptive != null)
+				return false;
+		} else if (!adaptive.equals(other.adaptive))
+			return false;
+		if (slowLinkKBps == null) {
+			if (other.slowLinkKBps != null)
+				return false;
+		} else if (!slowLinkKBps.equals(other.slowLinkKBps))
+			return false;
+		if (constrainedBudgetKB == null) {
+			if (other.constrainedBudgetKB != null)
+				return false;
+		} else if (!constrainedBudgetKB.equals(other.constrainedBudgetKB))
+			return false;
+		if (retryBaseSec == null) {
+			if (other.retryBaseSec != null)
+				return false;
+		} else if (!retryBaseSec.equals(other.retryBaseSec))
+			return false;
+		if (retryMaxSec == null) {
+			if (other.retryMaxSec != null)
+				return false;
+		} else if (!retryMaxSec.equals(other.retryMaxSec))
+			return false;
+		if (quarantineFailures == null) {
+			if (other.quarantineFailures != null)
+				return false;
+		} else if (!quarantineFailures.equals(other.quarantineFailures))
+			return false;
+		if (breakerFailures == null) {
+			if (other.breakerFailures != null)
+				return false;
+		} else if (!breakerFailures.equals(other.breakerFailures))
+			return false;
+		if (shares == null) {
+			if (other.shares != null)
+				return false;
+		} else if (!shares.equals(other.shares))
+			return false;
+		return true;
+	}
+}
+
+/*
+ * A client's weight, daily quota and guaranteed rate, for the client class given by name
+ * or, without one, for every client registered with the given priority.
+ */
+class UploaderShare {
+	
+	@Attribute(required=false)
+	public String name;
+	
+	@Attribute(required=false)
+	public Integer priority;
+	
+	@Attribute(required=false)
+	public Integer weight;
+	
+	@Attribute(required=false)
+	public Integer quotaKB;
+	
+	@Attribute(required=false)
+	public Integer minKBps;
+	
+	public UploaderShare() {
+		super();
+		weight = 1;
+		quotaKB = -1;
+		minKBps = 0;
+	}
+	
+	public UploaderShare(String name, Integer priority, Integer weight, Integer quotaKB, Integer minKBps) {
+		super();
+		this.name = name;
+		this.priority = priority;
+		this.weight = weight;
+		this.quotaKB = quotaKB;
+		this.minKBps = minKBps;
+	}
+	
+	public int getWeight() {
+		if (weight == null || weight < 1) {
+			return 1;
+		}
+		return weight;
+	}
+	
+	/* negative means no quota */
+	public long getQuotaBytes() {
+		if (quotaKB == null || quotaKB < 0) {
+			return Long.MAX_VALUE;
+		}
+		return quotaKB * 1024L;
+	}
+	
+	public long getMinBytesPerSec() {
+		if (minKBps == null || minKBps < 0) {
+			return 0L;
+		}
+		return minKBps * 1024L;
+	}
+	
+	@Override
+	public String toString() {
+		return "UploaderShare [name=" + name + ", priority=" + priority
+				+ ", weight=" + weight + ", quotaKB=" + quotaKB
+				+ ", minKBps=" + minKBps + "]";
+	}
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((minKBps == null) ? 0 : minKBps.hashCode());
+		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + ((priority == null) ? 0 : priority.hashCode());
+		result = prime * result + ((quotaKB == null) ? 0 : quotaKB.hashCode());
+		result = prime * result + ((weight == null) ? 0 : weight.hashCode());
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		UploaderShare other = (UploaderShare) obj;
+		if (minKBps == null) {
+			if (other.minKBps != null)
+				return false;
+		} else if (!minKBps.equals(other.minKBps))
+			return false;
+		if (name == null) {
+			if (other.name != null)
+				return false;
+		} else if (!name.equals(other.name))
+			return false;
+		if (priority == null) {
+			if (other.priority != null)
+				return false;
+		} else if (!priority.equals(other.priority))
+			return false;
+		if (quotaKB == null) {
+			if (other.quotaKB != null)
+				return false;
+		} else if (!quotaKB.equals(other.quotaKB))
+			return false;
+		if (weight == null) {
+			if (other.weight != null)
+				return false;
+		} else if (!weight.equals(other.weight))
+			return false;
 		return true;
 	}
 }
@@ -571,6 +2050,36 @@ class UploaderState extends PeriodicState {
 	@Element
 	Boolean power;
 	
+	@Element(required=false)
+	String networkKey;
+	
+	@Element(required=false)
+	Boolean metered;
+	
+	@Element(required=false)
+	Long linkKBps;
+	
+	@Element(required=false)
+	Long constrainedBytesToday;
+	
+	@Element(required=false)
+	Integer deferredFiles;
+	
+	@Element(required=false)
+	Integer quarantinedFiles;
+	
+	@Element(required=false)
+	Integer openClients;
+	
+	@Element(required=false)
+	Integer queuedFiles;
+	
+	@Element(required=false)
+	Long queuedBytes;
+	
+	@ElementList(required=false)
+	ArrayList<ClientShare> shares;
+	
 	public UploaderState() {
 		super();
 		lastUpload = new Date(0L);
@@ -579,4 +2088,29 @@ class UploaderState extends PeriodicState {
 		network = false;
 		power = false;
 	}
-}
\ No newline at end of file
+}
+
+@Root(name="share")
+class ClientShare {
+	@Attribute
+	String name;
+	
+	@Attribute
+	Integer weight;
+	
+	@Attribute
+	Integer backlogFiles;
+	
+	@Attribute
+	Long backlogBytes;
+	
+	/* of the bytes sent while it has files waiting, and of those sent in the last upload */
+	@Attribute
+	Integer entitledPercent;
+	
+	@Attribute
+	Integer servedPercent;
+	
+	@Attribute
+	Long usedBytesToday;
+}
@@ -0,0 +1,35 @@
+package edu.buffalo.cse.phonelab.harness.lib.util;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.simpleframework.xml.Serializer;
+import org.simpleframework.xml.core.Persister;
+
+/*
+ * A Persister caches the schema it builds for each annotated class, so a fresh
+ * instance per call rescans the annotations every time. The Persister is thread
+ * safe, and every task and logcat directory shares this one.
+ */
+public class Serialization {
+	
+	private static final Serializer serializer = new Persister();
+	
+	public static <T> T read(Class<? extends T> type, String source) throws Exception {
+		return serializer.read(type, source);
+	}
+	
+	public static <T> T read(Class<? extends T> type, File source) throws Exception {
+		return serializer.read(type, source);
+	}
+	
+	public static String write(Object source) throws Exception {
+		StringWriter stringWriter = new StringWriter();
+		serializer.write(source, stringWriter);
+		return stringWriter.toString();
+	}
+	
+	public static void write(Object source, File result) throws Exception {
+		serializer.write(source, result);
+	}
+}
@@ -1,6 +1,5 @@
 package edu.buffalo.cse.phonelab.harness.lib.util;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,11 +8,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
 
 import android.content.Context;
@@ -24,38 +30,211 @@ public class Util {
 	
 	public static final int UPLOAD_READ_TIMEOUT_SEC = 10;
 	
-	public static void copyFile(File in, File out) throws FileNotFoundException, IOException {
-		copyFile(new FileInputStream(in), new FileOutputStream(out));
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[COPY_BUFFER_SIZE];
+		}
+	};
+	
+	/* file to file copies stay in the kernel */
+	public static long copyFile(File in, File out) throws FileNotFoundException, IOException {
+		FileChannel inChannel = null;
+		FileChannel outChannel = null;
+		try {
+			inChannel = new FileInputStream(in).getChannel();
+			outChannel = new FileOutputStream(out).getChannel();
+			long size = inChannel.size();
+			long position = 0L;
+			while (position < size) {
+				long count = inChannel.transferTo(position, size - position, outChannel);
+				if (count <= 0) {
+					break;
+				}
+				position += count;
+			}
+			return position;
+		} finally {
+			if (inChannel != null) {
+				inChannel.close();
+			}
+			if (outChannel != null) {
+				outChannel.close();
+			}
+		}
+	}
+	
+	/* rename within a directory is atomic, so readers never see a partial file */
+	public static void replaceFile(File from, File to) throws IOException {
+		if (from.renameTo(to) == false) {
+			copyFile(from, to);
+			from.delete();
+		}
 	}
 	
-	public static Integer copyFile(InputStream in, OutputStream out) throws IOException {
-		byte[] buffer = new byte[4096];
-		Integer count;
-		Integer totalCount = 0;
+	public static long copyFile(InputStream in, OutputStream out) throws IOException {
+		long totalCount = copyStream(in, out);
+		out.close();
+		return totalCount;
+	}
+	
+	/* like copyFile but leaves out open for further writes */
+	public static long copyStream(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = copyBuffer.get();
+		int count;
+		long totalCount = 0L;
 		while ((count = in.read(buffer)) > 0) {
 			out.write(buffer, 0, count);
 			totalCount += count;
 		}
 		in.close();
 		out.flush();
-		out.close();
 		return totalCount;
 	}
 	
+	private static final long MAP_SLICE_SIZE = 4 * 1024 * 1024L;
+	private static final Method freeDirectBuffer = findFreeDirectBuffer();
+	
+	private static Method findFreeDirectBuffer() {
+		try {
+			return Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/* best effort, otherwise the mapping goes when the buffer is collected */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (freeDirectBuffer != null) {
+			try {
+				freeDirectBuffer.invoke(null, buffer);
+			} catch (Exception e) { }
+		}
+	}
+	
+	/*
+	 * Writes length bytes of in starting at offset from read-only mappings of up to
+	 * MAP_SLICE_SIZE, each unmapped once written. out is flushed but left open.
+	 */
+	public static long copyMapped(File in, long offset, long length, OutputStream out) throws IOException {
+		byte[] buffer = copyBuffer.get();
+		FileChannel channel = new FileInputStream(in).getChannel();
+		try {
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				long size = Math.min(MAP_SLICE_SIZE, end - position);
+				MappedByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				try {
+					while (slice.hasRemaining()) {
+						int count = Math.min(buffer.length, slice.remaining());
+						slice.get(buffer, 0, count);
+						out.write(buffer, 0, count);
+					}
+				} finally {
+					unmap(slice);
+				}
+				position += size;
+			}
+			out.flush();
+			return position - offset;
+		} finally {
+			channel.close();
+		}
+	}
+	
+	public static long copyMapped(File in, OutputStream out) throws IOException {
+		return copyMapped(in, 0L, in.length(), out);
+	}
+	
+	/* digester sees the compressed bytes, i.e. exactly what ends up in out */
+	public static long compressFile(File in, File out, MessageDigest digester) throws IOException {
+		copyFile(new FileInputStream(in), new GZIPOutputStream(new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(out)), digester)));
+		return out.length();
+	}
+	
+	public static final String HASH_ALGORITHM = "SHA-1";
+	private static final int HASH_BUFFER_SIZE = 64 * 1024;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	/*
+	 * Hashing runs on the check, compaction and upload threads, so each keeps one buffer.
+	 * On Android FileChannel reads straight into a heap buffer's backing array, which
+	 * CRC32 and MessageDigest can then consume without a further copy.
+	 */
+	private static final ThreadLocal<ByteBuffer> hashBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(HASH_BUFFER_SIZE);
+		}
+	};
+	
+	/* SHA-1, for integrity checks */
 	public static String hashFile(File f) throws IOException, NoSuchAlgorithmException {
-		return hashFile(new BufferedInputStream(new FileInputStream(f)));
+		MessageDigest digester = MessageDigest.getInstance(HASH_ALGORITHM);
+		ByteBuffer buffer = hashBuffer.get();
+		FileChannel channel = new FileInputStream(f).getChannel();
+		try {
+			buffer.clear();
+			while (channel.read(buffer) > 0) {
+				digester.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return digestToString(digester.digest());
 	}
 	
 	public static String hashFile(InputStream in) throws IOException, NoSuchAlgorithmException {
-		MessageDigest digester = MessageDigest.getInstance("SHA-1");
-		byte[] buffer = new byte[8192];
+		MessageDigest digester = MessageDigest.getInstance(HASH_ALGORITHM);
+		byte[] buffer = hashBuffer.get().array();
 		int count;
 		while ((count = in.read(buffer)) > 0) {
 			digester.update(buffer, 0, count);
 		}
 		in.close();
-		byte[] digest = digester.digest();
-		return new BigInteger(1, digest).toString(16);
+		return digestToString(digester.digest());
+	}
+	
+	public static String hashString(String s) throws NoSuchAlgorithmException {
+		MessageDigest digester = MessageDigest.getInstance(HASH_ALGORITHM);
+		try {
+			digester.update(s.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			digester.update(s.getBytes());
+		}
+		return digestToString(digester.digest());
+	}
+	
+	/* CRC32, for cheap change detection only */
+	public static String checksumFile(File f) throws IOException {
+		CRC32 checksum = new CRC32();
+		ByteBuffer buffer = hashBuffer.get();
+		FileChannel channel = new FileInputStream(f).getChannel();
+		try {
+			buffer.clear();
+			while (channel.read(buffer) > 0) {
+				checksum.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		long value = checksum.getValue();
+		return digestToString(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+	}
+	
+	/* fixed width: two hex digits per byte, leading zeros kept */
+	public static String digestToString(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+		}
+		return new String(hex);
 	}
 	
 	private static boolean getDeviceIDDone = false;
@@ -94,13 +273,39 @@ public class Util {
         return connection;
     }
     public static HttpURLConnection upload(URL to, InputStream from, boolean gzip, boolean chunkedTransferMode, int chunkSizeKB, int connectionTimeoutSec) throws IOException {
+        return upload(to, from, gzip, false, chunkedTransferMode, chunkSizeKB, connectionTimeoutSec);
+    }
+    /* precompressed sources already hold gzip data and are sent as stored */
+    public static HttpURLConnection upload(URL to, InputStream from, boolean gzip, boolean precompressed, boolean chunkedTransferMode, int chunkSizeKB, int connectionTimeoutSec) throws IOException {
         HttpURLConnection connection = getConnection(to, gzip, chunkedTransferMode, chunkSizeKB, connectionTimeoutSec);
+        if (gzip == true || precompressed == true) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
         OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream());
-        if (gzip == true) {
+        if (gzip == true && precompressed == false) {
             outputStream = new GZIPOutputStream(outputStream);
         }
 
         Util.copyFile(from, outputStream);
         return connection;
     }
+    /* stored files of known length are streamed from a mapping instead of buffered by the connection */
+    public static HttpURLConnection upload(URL to, File from, boolean gzip, boolean precompressed, boolean chunkedTransferMode, int chunkSizeKB, int connectionTimeoutSec) throws IOException {
+        HttpURLConnection connection = getConnection(to, gzip, chunkedTransferMode, chunkSizeKB, connectionTimeoutSec);
+        if (gzip == true || precompressed == true) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        long length = from.length();
+        if ((gzip == false || precompressed == true) && chunkedTransferMode == false && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        }
+        OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream());
+        if (gzip == true && precompressed == false) {
+            outputStream = new GZIPOutputStream(outputStream);
+        }
+
+        Util.copyMapped(from, 0L, length, outputStream);
+        outputStream.close();
+        return connection;
+    }
 }
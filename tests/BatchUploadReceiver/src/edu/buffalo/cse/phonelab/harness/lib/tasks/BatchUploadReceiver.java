@@ -0,0 +1,314 @@
+package edu.buffalo.cse.phonelab.harness.lib.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.buffalo.cse.phonelab.harness.lib.interfaces.UploaderFileDescription;
+
+/*
+ * Local stand-in for the batch endpoint, run on the plain JVM with sh/run. The client
+ * side is the UploadBatch the uploader uses. The receiver parses every post strictly,
+ * checks each part's headers and gunzipped contents, and answers the first post with a
+ * partial ack: some parts 200, some 500, some with no line at all, plus lines the
+ * client has to ignore. Parts without a 200 are posted again, and the second post must
+ * carry exactly those files. Exits non-zero on the first mismatch.
+ */
+public class BatchUploadReceiver implements HttpHandler {
+
+	private static final String PACKAGE_NAME = "edu.buffalo.cse.phonelab.testing";
+	private static final int[] FILE_SIZES = { 0, 1, 517, 64 * 1024, 64 * 1024 + 1, 200 * 1024, 3000 };
+	private static final int COMPRESSED_FILE = 5;
+	private static final int MAX_POSTS = 4;
+
+	private final HashMap<String, byte[]> expected = new HashMap<String, byte[]>();
+	private final HashMap<String, byte[]> received = new HashMap<String, byte[]>();
+	private final ArrayList<List<String>> posted = new ArrayList<List<String>>();
+	private final ArrayList<HashSet<String>> accepted = new ArrayList<HashSet<String>>();
+	private String error = null;
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		StringBuilder response = new StringBuilder();
+		int status = 200;
+		try {
+			synchronized (this) {
+				receive(exchange, response);
+			}
+		} catch (Exception e) {
+			synchronized (this) {
+				if (error == null) {
+					error = "post " + (posted.size() + 1) + ": " + e.getMessage();
+				}
+			}
+			status = 400;
+			response.setLength(0);
+		}
+		byte[] body = response.toString().getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private void receive(HttpExchange exchange, StringBuilder response) throws IOException {
+		check(exchange.getRequestMethod().equals("POST"), "method " + exchange.getRequestMethod());
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		String prefix = "multipart/form-data; boundary=";
+		check(contentType != null && contentType.startsWith(prefix), "content type " + contentType);
+		String boundary = contentType.substring(prefix.length());
+		check(boundary.length() > 0, "empty boundary");
+
+		ArrayList<String> names = new ArrayList<String>();
+		HashSet<String> acked = new HashSet<String>();
+		boolean first = posted.isEmpty();
+		byte[] body = readAll(exchange.getRequestBody());
+		ArrayList<byte[][]> parts = parse(body, boundary);
+		for (int index = 0; index < parts.size(); index++) {
+			String headers = new String(parts.get(index)[0], "UTF-8");
+			String name = partFilename(headers, index);
+			check(expected.containsKey(name), "unexpected file " + name);
+			check(names.contains(name) == false, "file " + name + " twice in one post");
+			byte[] contents = gunzip(parts.get(index)[1]);
+			check(Arrays.equals(contents, expected.get(name)), "contents of " + name + " differ");
+			names.add(name);
+
+			/* first post: 0, 3, 6 accepted, 1, 4 refused, 2, 5 left unanswered */
+			if (first == false || index % 3 == 0) {
+				response.append(index).append(" ").append(UploadBatch.ACK_OK).append("\n");
+				received.put(name, contents);
+				acked.add(name);
+			} else if (index % 3 == 1) {
+				response.append(index).append(" 500\n");
+			}
+		}
+		if (first) {
+			response.append("garbage\n");
+			response.append(parts.size()).append(" ").append(UploadBatch.ACK_OK).append("\n");
+			response.append("-1 ").append(UploadBatch.ACK_OK).append("\n");
+		}
+		posted.add(names);
+		accepted.add(acked);
+	}
+
+	/* returns { headers, content } for each part and insists on exact framing */
+	private static ArrayList<byte[][]> parse(byte[] body, String boundary) throws IOException {
+		byte[] delimiter = ("--" + boundary).getBytes("UTF-8");
+		byte[] crlf = "\r\n".getBytes("UTF-8");
+		byte[] nextDelimiter = ("\r\n--" + boundary).getBytes("UTF-8");
+		ArrayList<byte[][]> parts = new ArrayList<byte[][]>();
+		check(startsWith(body, 0, delimiter), "body does not open with the boundary");
+		int position = delimiter.length;
+		while (true) {
+			if (startsWith(body, position, "--".getBytes("UTF-8"))) {
+				check(startsWith(body, position + 2, crlf) && position + 4 == body.length, "bytes after the closing boundary");
+				return parts;
+			}
+			check(startsWith(body, position, crlf), "boundary not followed by CRLF");
+			position += crlf.length;
+			int headersEnd = indexOf(body, "\r\n\r\n".getBytes("UTF-8"), position);
+			check(headersEnd >= 0, "part " + parts.size() + " has no header terminator");
+			int contentEnd = indexOf(body, nextDelimiter, headersEnd + 4);
+			check(contentEnd >= 0, "part " + parts.size() + " is not closed by the boundary");
+			parts.add(new byte[][] {
+				Arrays.copyOfRange(body, position, headersEnd),
+				Arrays.copyOfRange(body, headersEnd + 4, contentEnd) });
+			position = contentEnd + nextDelimiter.length;
+		}
+	}
+
+	private static String partFilename(String headers, int index) throws IOException {
+		HashMap<String, String> fields = new HashMap<String, String>();
+		for (String line : headers.split("\r\n")) {
+			int colon = line.indexOf(':');
+			check(colon > 0, "malformed header " + line);
+			fields.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+		}
+		check("application/octet-stream".equals(fields.get("content-type")), "part " + index + " content type " + fields.get("content-type"));
+		check("gzip".equals(fields.get("content-encoding")), "part " + index + " content encoding " + fields.get("content-encoding"));
+		String disposition = fields.get("content-disposition");
+		String namePrefix = "form-data; name=\"" + index + "\"; filename=\"";
+		check(disposition != null && disposition.startsWith(namePrefix) && disposition.endsWith("\""), "part " + index + " disposition " + disposition);
+		return disposition.substring(namePrefix.length(), disposition.length() - 1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		BatchUploadReceiver receiver = new BatchUploadReceiver();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", receiver);
+		server.start();
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/" + PACKAGE_NAME + "/batch");
+			ArrayList<UploaderFileDescription> pending = receiver.createFiles(createTemporaryDirectory());
+			ArrayList<List<String>> sent = new ArrayList<List<String>>();
+			ArrayList<HashSet<String>> acknowledged = new ArrayList<HashSet<String>>();
+			while (pending.isEmpty() == false && sent.size() < MAX_POSTS) {
+				UploadBatch batch = new UploadBatch(pending);
+				HashSet<Integer> indices = post(url, batch);
+				synchronized (receiver) {
+					check(receiver.error == null, receiver.error);
+				}
+				check(indices != null, "post " + (sent.size() + 1) + " was rejected");
+				ArrayList<String> names = new ArrayList<String>();
+				HashSet<String> acked = new HashSet<String>();
+				ArrayList<UploaderFileDescription> missing = new ArrayList<UploaderFileDescription>();
+				for (int index = 0; index < pending.size(); index++) {
+					String name = PACKAGE_NAME + "/" + pending.get(index).filename;
+					names.add(name);
+					if (indices.contains(index)) {
+						acked.add(name);
+					} else {
+						missing.add(pending.get(index));
+					}
+				}
+				sent.add(names);
+				acknowledged.add(acked);
+				pending = missing;
+			}
+			receiver.verify(sent, acknowledged);
+		} finally {
+			server.stop(0);
+		}
+		System.out.println("Batch protocol OK.");
+	}
+
+	/* the same request UploaderTask makes, with chunked streaming; null unless answered with 200 */
+	private static HashSet<Integer> post(URL url, UploadBatch batch) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setChunkedStreamingMode(16 * 1024);
+		connection.setRequestProperty("Content-Type", batch.contentType());
+		OutputStream outputStream = connection.getOutputStream();
+		batch.write(outputStream);
+		outputStream.close();
+		if (connection.getResponseCode() != 200) {
+			connection.disconnect();
+			return null;
+		}
+		InputStream inputStream = connection.getInputStream();
+		HashSet<Integer> acknowledged = batch.readAcknowledged(inputStream);
+		inputStream.close();
+		connection.disconnect();
+		return acknowledged;
+	}
+
+	private synchronized void verify(ArrayList<List<String>> sent, ArrayList<HashSet<String>> acknowledged) throws IOException {
+		check(sent.size() == 2, "expected 2 posts, client made " + sent.size());
+		check(posted.equals(sent), "receiver saw " + posted + " but client sent " + sent);
+		check(accepted.equals(acknowledged), "receiver accepted " + accepted + " but client read " + acknowledged);
+
+		ArrayList<String> retried = new ArrayList<String>(sent.get(0));
+		retried.removeAll(acknowledged.get(0));
+		check(retried.equals(sent.get(1)), "retried " + sent.get(1) + " instead of " + retried);
+		check(acknowledged.get(0).size() == (FILE_SIZES.length + 2) / 3, "first post acked " + acknowledged.get(0));
+		check(received.keySet().equals(expected.keySet()), "received " + received.keySet() + " of " + expected.keySet());
+	}
+
+	private ArrayList<UploaderFileDescription> createFiles(File directory) throws Exception {
+		Random random = new Random(1);
+		ArrayList<UploaderFileDescription> files = new ArrayList<UploaderFileDescription>();
+		for (int index = 0; index < FILE_SIZES.length; index++) {
+			byte[] contents = new byte[FILE_SIZES[index]];
+			for (int offset = 0; offset < contents.length; offset++) {
+				/* compressible, but not trivially */
+				contents[offset] = (byte) ('a' + random.nextInt(8));
+			}
+			String filename = "log." + index;
+			byte[] stored = contents;
+			if (index == COMPRESSED_FILE) {
+				filename += ".gz";
+				stored = gzip(contents);
+			}
+			File file = new File(directory, filename);
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(stored);
+			out.close();
+			file.deleteOnExit();
+
+			UploaderFileDescription uploaderFileDescription = new UploaderFileDescription(file.getAbsolutePath(), filename, PACKAGE_NAME);
+			if (index == COMPRESSED_FILE) {
+				uploaderFileDescription.contentEncoding = UploaderFileDescription.ENCODING_GZIP;
+			}
+			files.add(uploaderFileDescription);
+			expected.put(PACKAGE_NAME + "/" + filename, contents);
+		}
+		return files;
+	}
+
+	private static File createTemporaryDirectory() throws IOException {
+		File directory = File.createTempFile("BatchUploadReceiver", "");
+		check(directory.delete() && directory.mkdir(), "unable to create " + directory);
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private static void check(boolean condition, String message) throws IOException {
+		if (condition == false) {
+			throw new IOException(message);
+		}
+	}
+
+	private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+		if (offset < 0 || offset + prefix.length > data.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		for (int offset = from; offset + pattern.length <= data.length; offset++) {
+			if (startsWith(data, offset, pattern)) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(out);
+		gzipOutputStream.write(data);
+		gzipOutputStream.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+	}
+}
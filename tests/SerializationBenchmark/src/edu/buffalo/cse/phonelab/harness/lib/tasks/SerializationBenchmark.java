@@ -0,0 +1,83 @@
+package edu.buffalo.cse.phonelab.harness.lib.tasks;
+
+import java.io.StringWriter;
+
+import org.simpleframework.xml.core.Persister;
+
+import edu.buffalo.cse.phonelab.harness.lib.util.Serialization;
+
+/*
+ * Per-call cost of SimpleXML serialization on the task parameter and state classes, with
+ * a new Persister for every call (as before Serialization existed) against the shared one
+ * in Serialization. Run on the plain JVM with sh/run [iterations]; each case is warmed up
+ * before it is timed. The XML produced is the same either way, so only time differs.
+ */
+public class SerializationBenchmark {
+
+	private static final int DEFAULT_ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		/* filled in from the package at runtime, and empty strings do not read back */
+		ManifestState manifestState = new ManifestState();
+		manifestState.versionName = "1.1";
+		manifestState.versionCode = "16";
+		Object[] samples = {
+			new UploaderParameters(),
+			new LogcatParameters(),
+			new ManifestParameters(),
+			new UploaderState(),
+			new LogcatState(),
+			manifestState,
+		};
+		System.out.println(String.format("%-20s %12s %12s %12s %12s", "class",
+				"write new", "write shared", "read new", "read shared"));
+		for (Object sample : samples) {
+			String xml = Serialization.write(sample);
+			if (xml.equals(writeFresh(sample)) == false) {
+				throw new IllegalStateException(sample.getClass().getSimpleName() + " serializes differently");
+			}
+			double[] micros = new double[4];
+			for (int pass = 0; pass < 2; pass++) {
+				/* the first pass only warms up */
+				micros[0] = timeWrite(sample, iterations, false);
+				micros[1] = timeWrite(sample, iterations, true);
+				micros[2] = timeRead(sample.getClass(), xml, iterations, false);
+				micros[3] = timeRead(sample.getClass(), xml, iterations, true);
+			}
+			System.out.println(String.format("%-20s %10.1fus %10.1fus %10.1fus %10.1fus   %4.1fx %4.1fx",
+					sample.getClass().getSimpleName(), micros[0], micros[1], micros[2], micros[3],
+					micros[0] / micros[1], micros[2] / micros[3]));
+		}
+	}
+
+	private static String writeFresh(Object source) throws Exception {
+		StringWriter stringWriter = new StringWriter();
+		new Persister().write(source, stringWriter);
+		return stringWriter.toString();
+	}
+
+	private static double timeWrite(Object source, int iterations, boolean shared) throws Exception {
+		long started = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (shared) {
+				Serialization.write(source);
+			} else {
+				writeFresh(source);
+			}
+		}
+		return (System.nanoTime() - started) / 1000.0 / iterations;
+	}
+
+	private static double timeRead(Class<?> type, String xml, int iterations, boolean shared) throws Exception {
+		long started = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (shared) {
+				Serialization.read(type, xml);
+			} else {
+				new Persister().read(type, xml);
+			}
+		}
+		return (System.nanoTime() - started) / 1000.0 / iterations;
+	}
+}